@@ -0,0 +1,81 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.openjdk.jmh.annotations.*;
+import razesoldier.epub.hant2hans.BenchmarkConverters;
+import razesoldier.epub.hant2hans.VariantConverter;
+import razesoldier.epub.hant2hans.VariantConverterFactory;
+import razesoldier.epub.reader.BenchmarkBooks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts a generated book of the given number of chapters of 200 paragraphs, as "hant2hans" does with a single
+ * book: on a pool of all processors, with a converter cache that starts empty for each book.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BookBenchmark {
+    @Param({"mynlp", "trie"})
+    public String engine;
+
+    @Param({"10", "100"})
+    public int chapters;
+
+    @Param({"stream", "dom"})
+    public String rewriter;
+
+    private VariantConverter converter;
+    private ForkJoinPool pool;
+    private Path src;
+    private Path dst;
+
+    @Setup
+    public void setUp() throws IOException {
+        converter = BenchmarkConverters.newConverter(engine);
+        pool = Workers.newPool(Runtime.getRuntime().availableProcessors());
+        src = Files.createTempFile("benchmark", ".epub");
+        dst = Files.createTempFile("benchmark", ".epub");
+        BenchmarkBooks.write(src, chapters, 200);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pool.shutdownNow();
+        Files.delete(src);
+        Files.delete(dst);
+    }
+
+    @Benchmark
+    public String convert() throws Exception {
+        VariantConverter cachingConverter =
+                VariantConverterFactory.withCache(converter, VariantConverterFactory.DEFAULT_CACHE_CHARS);
+        return new BookConverter(CompletableFuture.completedFuture(cachingConverter), pool,
+                BookConverter.Rewriter.valueOf(rewriter.toUpperCase())).convert(src, dst);
+    }
+}
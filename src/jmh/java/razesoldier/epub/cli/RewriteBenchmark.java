@@ -0,0 +1,68 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.openjdk.jmh.annotations.*;
+import razesoldier.epub.hant2hans.BenchmarkConverters;
+import razesoldier.epub.hant2hans.VariantConverter;
+import razesoldier.epub.reader.BenchmarkBooks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rewrites a chapter of the given number of paragraphs, and a NCX file of as many navPoints, with
+ * {@link XhtmlRewriter}. Converters are used without cache, the score is per document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RewriteBenchmark {
+    @Param({"mynlp", "trie"})
+    public String engine;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    private VariantConverter converter;
+    private byte[] chapter;
+    private byte[] ncx;
+
+    @Setup
+    public void setUp() {
+        converter = BenchmarkConverters.newConverter(engine);
+        chapter = BenchmarkBooks.chapter(size, 42).getBytes(StandardCharsets.UTF_8);
+        ncx = BenchmarkBooks.ncx(size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public boolean rewriteChapter() throws IOException {
+        return new XhtmlRewriter(converter).rewrite(new ByteArrayInputStream(chapter), OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public boolean rewriteNcx() throws IOException {
+        return XhtmlRewriter.forNcx(converter).rewrite(new ByteArrayInputStream(ncx), OutputStream.nullOutputStream());
+    }
+}
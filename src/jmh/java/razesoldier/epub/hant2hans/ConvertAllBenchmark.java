@@ -0,0 +1,75 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.hant2hans;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts a dialogue-heavy chapter, made of many tiny paragraphs, paragraph by paragraph and with
+ * {@link VariantConverter#convertAll(List)}. Converters are used without cache, the score is per chapter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConvertAllBenchmark {
+    private static final String[] LINES = {
+            "「你說什麼？」", "「沒什麼。」", "他搖了搖頭。", "「這本書是誰的？」", "「我們的。」", "……", "「走吧。」",
+            "她轉過身，頭髮在風中飄動。", "「等一下！」", "＊＊＊", "「為什麼？」", "「因為國王來了。」"
+    };
+
+    @Param({"mynlp", "trie"})
+    public String engine;
+
+    @Param({"1000", "5000"})
+    public int paragraphs;
+
+    private VariantConverter converter;
+    private List<String> chapter;
+
+    @Setup
+    public void setUp() {
+        converter = BenchmarkConverters.newConverter(engine);
+        Random random = new Random(42);
+        chapter = new ArrayList<>(paragraphs);
+        for (int i = 0; i < paragraphs; ++i) {
+            chapter.add(LINES[random.nextInt(LINES.length)]);
+        }
+    }
+
+    @Benchmark
+    public List<String> convertEach() {
+        List<String> results = new ArrayList<>(chapter.size());
+        for (String paragraph : chapter) {
+            results.add(converter.convert(paragraph));
+        }
+        return results;
+    }
+
+    @Benchmark
+    public List<String> convertAll() {
+        return converter.convertAll(chapter);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.hant2hans;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the built-in {@link TrieConverter} with {@link MynlpConverter}, without caches, on generated paragraphs.
+ * <p>
+ * The trie is built from the OpenCC tables listed in the system property "epub.dict", comma-separated, e.g.
+ * -PjmhArgs="Converter -jvmArgs -Depub.dict=TSPhrases.txt,TSCharacters.txt". Without it, the trie is built
+ * from the single-character conversions of mynlp, which measures the engine but not phrase handling.
+ * The number of paragraphs that both converters convert differently is printed at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConverterBenchmark {
+    static final String SAMPLE = "話說天下大勢，分久必合，合久必分。周末七國分爭，並入於秦。及秦滅之後，楚、漢分爭，又並入於漢。"
+            + "他穿著一件舊長衫，頭髮已經花白了，慢慢地走進書房裡，說道：「這本書我們已經讀過很多遍了。」"
+            + "Chapter 12 — 第十二回　東風吹過了國境，萬里無雲，鳥兒們在樹上歡樂地唱歌。";
+    static final int PARAGRAPHS = 1000;
+
+    private MynlpConverter mynlpConverter;
+    private TrieConverter trieConverter;
+    private List<String> paragraphs;
+
+    @Setup
+    public void setUp() throws IOException {
+        mynlpConverter = new MynlpConverter();
+        String dict = System.getProperty("epub.dict");
+        if (dict != null) {
+            List<Path> tables = new ArrayList<>();
+            for (String table : dict.split(",")) {
+                tables.add(Paths.get(table));
+            }
+            trieConverter = TrieConverter.load(tables);
+        } else {
+            trieConverter = TrieConverter.build(probe(mynlpConverter), "mynlp-probe");
+        }
+        paragraphs = paragraphs(PARAGRAPHS);
+
+        int different = 0;
+        for (String paragraph : paragraphs) {
+            if (!mynlpConverter.convert(paragraph).equals(trieConverter.convert(paragraph))) {
+                ++different;
+            }
+        }
+        System.out.printf("%n%d of %d paragraphs are converted differently%n", different, paragraphs.size());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PARAGRAPHS)
+    public void mynlp(Blackhole blackhole) {
+        for (String paragraph : paragraphs) {
+            blackhole.consume(mynlpConverter.convert(paragraph));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PARAGRAPHS)
+    public void trie(Blackhole blackhole) {
+        for (String paragraph : paragraphs) {
+            blackhole.consume(trieConverter.convert(paragraph));
+        }
+    }
+
+    /**
+     * Paragraphs cut from the sample at various offsets and lengths, so that few of them are identical.
+     */
+    static List<String> paragraphs(int count) {
+        Random random = new Random(42);
+        String text = SAMPLE.repeat(8);
+        List<String> paragraphs = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            int start = random.nextInt(SAMPLE.length());
+            paragraphs.add(text.substring(start, start + 20 + random.nextInt(300)));
+        }
+        return paragraphs;
+    }
+
+    /**
+     * A character table made of the BMP ideographs that the converter changes on their own.
+     */
+    static Map<String, String> probe(VariantConverter converter) {
+        Map<String, String> dictionary = new TreeMap<>();
+        for (char c = '一'; c <= '鿿'; ++c) {
+            String key = String.valueOf(c);
+            String value = converter.convert(key);
+            if (!value.equals(key)) {
+                dictionary.put(key, value);
+            }
+        }
+        return dictionary;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.reader;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens a generated book with the given number of chapters, lazily as the conversion does and eagerly with its
+ * NCX, and inflates all its chapters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArchiveBenchmark {
+    @Param({"10", "100", "1000"})
+    public int chapters;
+
+    private Path book;
+
+    @Setup
+    public void setUp() throws IOException {
+        book = Files.createTempFile("benchmark", ".epub");
+        BenchmarkBooks.write(book, chapters, 50);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(book);
+    }
+
+    @Benchmark
+    public EPUBBook openLazy() throws Exception {
+        try (EPUBReader reader = new EPUBReader(book.toString(), EPUBReader.OpenMode.LAZY)) {
+            return reader.getBook();
+        }
+    }
+
+    @Benchmark
+    public EPUBBook openEager() throws Exception {
+        try (EPUBReader reader = new EPUBReader(book.toString(), EPUBReader.OpenMode.EAGER)) {
+            return reader.getBook();
+        }
+    }
+
+    @Benchmark
+    public long readChapters() throws Exception {
+        long size = 0;
+        try (EPUBReader reader = new EPUBReader(book.toString(), EPUBReader.OpenMode.LAZY)) {
+            for (int i = 0; i < chapters; ++i) {
+                try (InputStream is = reader.readFileWithStream("OEBPS/chapter" + i + ".xhtml")) {
+                    size += is.transferTo(OutputStream.nullOutputStream());
+                }
+            }
+        }
+        return size;
+    }
+}
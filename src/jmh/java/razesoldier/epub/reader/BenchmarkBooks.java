@@ -0,0 +1,113 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.reader;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generates the documents of synthetic books used by benchmarks.
+ */
+public class BenchmarkBooks {
+    private static final String[] LINES = {
+            "話說天下大勢，分久必合，合久必分。周末七國分爭，並入於秦。及秦滅之後，楚、漢分爭，又並入於漢。",
+            "他穿著一件舊長衫，頭髮已經花白了，慢慢地走進書房裡，說道：「這本書我們已經讀過很多遍了。」",
+            "東風吹過了國境，萬里無雲，鳥兒們在樹上歡樂地唱歌。", "「你說什麼？」", "「沒什麼。」", "她轉過身，頭髮在風中飄動。",
+            "Chapter 12 — 第十二回　<em>國王</em>來了，<ruby>龍<rt>lóng</rt></ruby>在雲裡。"
+    };
+
+    private BenchmarkBooks() {
+    }
+
+    /**
+     * A XHTML chapter made of the given number of paragraphs, some of them with inline markup.
+     *
+     * @param seed Chapters with different seeds have their paragraphs in a different order
+     */
+    @NotNull
+    public static String chapter(int paragraphs, long seed) {
+        Random random = new Random(seed);
+        StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<!DOCTYPE html>\n<html xmlns=\"http://www.w3.org/1999/xhtml\">\n<head>\n")
+                .append("<title>第一章</title>\n<link rel=\"stylesheet\" type=\"text/css\" href=\"style.css\"/>\n")
+                .append("</head>\n<body>\n<h1>第一章　開始說書</h1>\n");
+        for (int i = 0; i < paragraphs; ++i) {
+            builder.append("<p>").append(LINES[random.nextInt(LINES.length)]).append("</p>\n");
+        }
+        return builder.append("</body>\n</html>\n").toString();
+    }
+
+    /**
+     * Write a book with the given number of chapters, described by {@link #opf(int)} and {@link #ncx(int)}.
+     */
+    public static void write(@NotNull Path path, int chapters, int paragraphs) throws IOException {
+        try (EPUBWriter writer = new EPUBWriter(path)) {
+            writer.writeFile("META-INF/container.xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<container version=\"1.0\" xmlns=\"urn:oasis:names:tc:opendocument:xmlns:container\">\n"
+                    + "<rootfiles><rootfile full-path=\"OEBPS/content.opf\" "
+                    + "media-type=\"application/oebps-package+xml\"/></rootfiles>\n</container>\n");
+            writer.writeFile("OEBPS/content.opf", opf(chapters));
+            writer.writeFile("OEBPS/toc.ncx", ncx(chapters));
+            for (int i = 0; i < chapters; ++i) {
+                writer.writeFile("OEBPS/chapter" + i + ".xhtml", chapter(paragraphs, i));
+            }
+        }
+    }
+
+    /**
+     * An OPF file with a manifest item and a spine itemref for each chapter, plus the NCX item.
+     */
+    @NotNull
+    public static String opf(int chapters) {
+        StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<package xmlns=\"http://www.idpf.org/2007/opf\" version=\"2.0\">\n")
+                .append("<metadata xmlns:dc=\"http://purl.org/dc/elements/1.1/\">\n")
+                .append("<dc:title>測試書籍</dc:title>\n<dc:language>zh-TW</dc:language>\n<dc:creator>作者</dc:creator>\n")
+                .append("</metadata>\n<manifest>\n")
+                .append("<item id=\"ncx\" href=\"toc.ncx\" media-type=\"application/x-dtbncx+xml\"/>\n");
+        for (int i = 0; i < chapters; ++i) {
+            builder.append("<item id=\"c").append(i).append("\" href=\"chapter").append(i)
+                    .append(".xhtml\" media-type=\"application/xhtml+xml\"/>\n");
+        }
+        builder.append("</manifest>\n<spine toc=\"ncx\">\n");
+        for (int i = 0; i < chapters; ++i) {
+            builder.append("<itemref idref=\"c").append(i).append("\"/>\n");
+        }
+        return builder.append("</spine>\n</package>\n").toString();
+    }
+
+    /**
+     * A NCX file with a navPoint for each chapter.
+     */
+    @NotNull
+    public static String ncx(int chapters) {
+        StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<ncx xmlns=\"http://www.daisy.org/z3986/2005/ncx/\" version=\"2005-1\">\n")
+                .append("  <head>\n    <meta name=\"dtb:uid\" content=\"benchmark\"/>\n  </head>\n")
+                .append("  <docTitle>\n    <text>測試書籍</text>\n  </docTitle>\n  <navMap>\n");
+        for (int i = 0; i < chapters; ++i) {
+            builder.append("    <navPoint id=\"np-").append(i).append("\" playOrder=\"").append(i + 1).append("\">\n")
+                    .append("      <navLabel>\n        <text>第").append(i).append("章 開始說書</text>\n      </navLabel>\n")
+                    .append("      <content src=\"chapter").append(i).append(".xhtml\"/>\n    </navPoint>\n");
+        }
+        return builder.append("  </navMap>\n</ncx>\n").toString();
+    }
+}
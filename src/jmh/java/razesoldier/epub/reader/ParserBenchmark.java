@@ -0,0 +1,97 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.reader;
+
+import org.openjdk.jmh.annotations.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the StAX parsers with a DOM walk equivalent to the former implementation,
+ * on generated OPF and NCX files with the given number of manifest items and navPoints.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int entries;
+
+    private byte[] opf;
+    private byte[] ncx;
+
+    @Setup
+    public void setUp() {
+        opf = BenchmarkBooks.opf(entries).getBytes(StandardCharsets.UTF_8);
+        ncx = BenchmarkBooks.ncx(entries).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public EPUBBook parseOPF() throws Exception {
+        return new OPFParser(new ByteArrayInputStream(opf), "OEBPS/content.opf").parse();
+    }
+
+    @Benchmark
+    public EPUBBook.NCX parseNCX() throws Exception {
+        return new NCXParser(new ByteArrayInputStream(ncx)).parse();
+    }
+
+    @Benchmark
+    public Map<String, String> parseOPFWithDOM() throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(opf));
+        Map<String, String> manifests = new HashMap<>();
+        NodeList items = document.getElementsByTagName("manifest").item(0).getChildNodes();
+        for (int i = 0; i < items.getLength(); ++i) {
+            Node node = items.item(i);
+            if (node.getNodeName().equals("item")) {
+                manifests.put(((Element) node).getAttribute("id"), ((Element) node).getAttribute("href"));
+            }
+        }
+        return manifests;
+    }
+
+    @Benchmark
+    public Map<String, String> parseNCXWithDOM() throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(ncx));
+        Map<String, String> navPoints = new HashMap<>();
+        NodeList navMap = document.getElementsByTagName("navMap").item(0).getChildNodes();
+        for (int i = 0; i < navMap.getLength(); ++i) {
+            Node node = navMap.item(i);
+            if (node instanceof Element && node.getNodeName().equals("navPoint")) {
+                Element element = (Element) node;
+                navPoints.put(element.getAttribute("id"),
+                        element.getElementsByTagName("text").item(0).getTextContent());
+            }
+        }
+        return navPoints;
+    }
+}
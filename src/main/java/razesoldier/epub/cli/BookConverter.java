@@ -0,0 +1,619 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.TextNode;
+import razesoldier.epub.hant2hans.VariantConverter;
+import razesoldier.epub.reader.*;
+
+import java.io.BufferedInputStream;
+import java.io.CharConversionException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Convert books from zh-hant to zh-hans.
+ * <p>
+ * One instance is shared by all books of a batch: the {@link VariantConverter} is loaded once, and the chapters
+ * of every book run on the given executor. The converter may still be loading: books are opened and entries
+ * are copied meanwhile, and only the conversion itself waits for it. The executor should be a
+ * {@link java.util.concurrent.ForkJoinPool}, so that a book waiting for its chapters on a worker thread runs them
+ * itself instead of blocking the worker.
+ */
+class BookConverter {
+    /**
+     * How chapters are rewritten.
+     */
+    enum Rewriter {
+        /**
+         * Stream the chapter through {@link XhtmlRewriter}, the markup is kept byte for byte
+         */
+        STREAM,
+        /**
+         * Parse the chapter into a jsoup document, which normalizes the markup
+         */
+        DOM
+    }
+
+    /**
+     * What a streamed chapter holds in memory at most: the token window, the buffers of the streams, and the
+     * deflated data until it is spilled to a temporary file.
+     */
+    static final long STREAM_BYTES = 2 * 1024 * 1024;
+    /**
+     * What a chapter rewritten with jsoup holds in memory, per byte of the chapter: the source, the document,
+     * the serialized result and its bytes.
+     */
+    static final int DOM_BYTES_PER_BYTE = 8;
+    /**
+     * The version of the output of the rewriters, it is part of the version of the journal and cache records.
+     * Increase it whenever a rewriter writes a chapter differently.
+     */
+    static final int REWRITER_VERSION = 2;
+
+    private Future<VariantConverter> variantConverter;
+    private ExecutorService executorService;
+    private Rewriter rewriter;
+    private LongAdder skippedEntries = new LongAdder();
+    @Nullable
+    private ScriptDetector scriptDetector;
+    private boolean journaled;
+    @Nullable
+    private ConversionCache cache;
+    private volatile boolean cacheBypassed;
+    private MemoryBudget memoryBudget = new MemoryBudget(Long.MAX_VALUE);
+    private LongAdder restoredEntries = new LongAdder();
+    private RunReport report = new RunReport();
+
+    @Contract(pure = true)
+    BookConverter(@NotNull Future<VariantConverter> variantConverter, @NotNull ExecutorService executorService,
+                  @NotNull Rewriter rewriter) {
+        this.variantConverter = variantConverter;
+        this.executorService = executorService;
+        this.rewriter = rewriter;
+    }
+
+    @Contract(pure = true)
+    BookConverter(@NotNull Future<VariantConverter> variantConverter, @NotNull ExecutorService executorService) {
+        this(variantConverter, executorService, Rewriter.STREAM);
+    }
+
+    @Contract(pure = true)
+    BookConverter(@NotNull VariantConverter variantConverter, @NotNull ExecutorService executorService) {
+        this(CompletableFuture.completedFuture(variantConverter), executorService);
+    }
+
+    /**
+     * @return The number of entries, over all books, that were copied unchanged because nothing in them was converted
+     */
+    long getSkippedEntries() {
+        return skippedEntries.sum();
+    }
+
+    /**
+     * @return The number of entries, over all books, that were restored from the journal of a previous run
+     */
+    long getRestoredEntries() {
+        return restoredEntries.sum();
+    }
+
+    /**
+     * @return The timings of every book converted so far
+     */
+    @NotNull
+    RunReport getReport() {
+        return report;
+    }
+
+    /**
+     * Keep a {@link ConversionJournal} next to each converted book while it is converted, and restore the
+     * entries recorded by a previous run that did not complete.
+     */
+    void setJournaled(boolean journaled) {
+        this.journaled = journaled;
+    }
+
+    /**
+     * Limit the chapter data in memory, over all books, see {@link MemoryBudget}. Unlimited by default.
+     */
+    void setMemoryBudget(@NotNull MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Consult the given cache before converting an entry, and add the converted entries to it.
+     */
+    void setCache(@Nullable ConversionCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return Whether the cache was not used because the version of the converter is not known
+     */
+    boolean isCacheBypassed() {
+        return cacheBypassed;
+    }
+
+    /**
+     * Check every book with the given detector first, and skip the books that do not need a conversion.
+     */
+    void setScriptDetector(@Nullable ScriptDetector scriptDetector) {
+        this.scriptDetector = scriptDetector;
+    }
+
+    /**
+     * Convert the source book.
+     *
+     * @param src The source book
+     * @param dst Where to write the converted book, the source book is replaced if null
+     * @return Why the book was skipped, or null if it was converted. A skipped book is copied to dst as it is.
+     */
+    @Nullable
+    String convert(@NotNull Path src, @Nullable Path dst) throws ExecuteException {
+        long startTime = System.nanoTime();
+        String status = "failed";
+        try {
+            String skipReason = scriptDetector != null ? detect(src) : null;
+            if (skipReason != null) {
+                status = "skipped";
+                copyBook(src, dst);
+                return skipReason;
+            }
+            doConvert(src, dst);
+            status = "ok";
+            return null;
+        } finally {
+            report.addBook(src.toString(), System.nanoTime() - startTime, status);
+        }
+    }
+
+    private void copyBook(@NotNull Path src, @Nullable Path dst) throws ExecuteException {
+        if (dst == null) {
+            return;
+        }
+        long startTime = System.nanoTime();
+        try {
+            Files.copy(src, dst, StandardCopyOption.REPLACE_EXISTING);
+            report.add(RunReport.Stage.COPY, System.nanoTime() - startTime, Files.size(dst));
+        } catch (IOException e) {
+            throw new ExecuteException(e);
+        }
+    }
+
+    private void doConvert(@NotNull Path src, @Nullable Path dst) throws ExecuteException {
+
+        Path target;
+        try {
+            // Without dst, the new book is written next to the source one and replaces it at the end
+            target = dst != null ? dst :
+                    Files.createTempFile(src.toAbsolutePath().getParent(), src.getFileName().toString(), ".tmp");
+        } catch (IOException e) {
+            throw new ExecuteException(e);
+        }
+
+        ConversionJournal journal = journaled ?
+                new ConversionJournal(ConversionJournal.getDirectory(dst != null ? dst : src)) : null;
+        Book book = new Book(src.toString(), journal);
+        boolean succeeded = false;
+        try {
+            write(src, target, book);
+            if (dst == null) {
+                Files.move(target, src, StandardCopyOption.REPLACE_EXISTING);
+            }
+            report.add(RunReport.Stage.FINISH, System.nanoTime() - book.finishTime,
+                    Files.size(dst != null ? dst : src));
+            succeeded = true;
+            if (journal != null) {
+                journal.delete();
+            }
+        } catch (IOException e) {
+            throw new ExecuteException(e);
+        } finally {
+            if (!succeeded) {
+                try {
+                    Files.deleteIfExists(target);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private String detect(@NotNull Path src) throws ExecuteException {
+        long startTime = System.nanoTime();
+        try (EPUBReader epubReader = new EPUBReader(src.toString(), EPUBReader.OpenMode.LAZY)) {
+            String skipReason = scriptDetector.check(epubReader);
+            report.add(RunReport.Stage.PRESCAN, System.nanoTime() - startTime, 0);
+            return skipReason;
+        } catch (BookLoadException e) {
+            throw new ExecuteException(e.getCause());
+        } catch (InitException | IOException | ZipReadException | ZipEntryNotFoundException e) {
+            throw new ExecuteException(e);
+        }
+    }
+
+    /**
+     * Read the source book once and write the converted book to dst sequentially.
+     */
+    private void write(@NotNull Path src, @NotNull Path dst, @NotNull Book book) throws ExecuteException {
+        long startTime = System.nanoTime();
+        // The NCX model is not needed, the NCX file is rewritten as a stream
+        try (EPUBReader epubReader = new EPUBReader(src.toString(), EPUBReader.OpenMode.LAZY);
+             EPUBWriter epubWriter = new EPUBWriter(dst)) {
+            book.reader = epubReader;
+            book.writer = epubWriter;
+            EPUBBook epubBook = epubReader.getBook();
+            // Entries that will not be copied from the source book, the mimetype is written by EPUBWriter itself
+            Set<String> handledEntries = new HashSet<>();
+            handledEntries.add("mimetype");
+
+            // Convert the chapters on the shared executor, largest first.
+            // Each task writes its own entry, EPUBWriter serializes the writes.
+            List<String> chapters = new ArrayList<>();
+            for (Map.Entry<String, EPUBBook.Manifest> entry : epubBook.getManifests().entrySet()) {
+                EPUBBook.Manifest manifest = entry.getValue();
+                if (!manifest.getMediaType().equals("application/xhtml+xml")) {
+                    continue;
+                }
+                String entryName = epubReader.getManifestEntryName(manifest.getFilePath());
+                if (handledEntries.add(entryName)) {
+                    chapters.add(entryName);
+                }
+            }
+            chapters.sort(Comparator.comparingLong((String entryName) -> getSize(epubReader, entryName)).reversed());
+            report.add(RunReport.Stage.OPEN, System.nanoTime() - startTime, Files.size(src));
+
+            ChapterScheduler scheduler = new ChapterScheduler(executorService);
+            boolean succeeded = false;
+            try {
+                for (String entryName : chapters) {
+                    scheduler.submit(new ConvertTask(entryName, book));
+                }
+
+                // The NCX is rewritten as a stream too, along with the chapters
+                String ncxEntry = epubReader.getEntryName(epubBook.getSpines().getSpineFilePath());
+                if (handledEntries.add(ncxEntry)) {
+                    scheduler.submit(new NcxTask(ncxEntry, book));
+                }
+
+                // Copy the rest entries as they are, without decompressing them
+                for (String entryName : epubReader.getEntryNames()) {
+                    if (!handledEntries.contains(entryName)) {
+                        copyEntry(book, entryName);
+                    }
+                }
+
+                scheduler.await();
+                succeeded = true;
+                // Closing the writer writes the central directory
+                book.finishTime = System.nanoTime();
+            } finally {
+                // The book is discarded, stop converting it before the reader and writer are closed
+                if (!succeeded) {
+                    scheduler.cancel();
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new ExecuteException(e.getCause());
+        } catch (BookLoadException e) {
+            throw new ExecuteException(e.getCause());
+        } catch (InitException | IOException | ZipEntryNotFoundException | InterruptedException e) {
+            throw new ExecuteException(e);
+        }
+    }
+
+    private void copyEntry(@NotNull Book book, @NotNull String entryName)
+            throws ZipEntryNotFoundException, IOException {
+        long startTime = System.nanoTime();
+        book.writer.copyFile(book.reader, entryName);
+        ZipIndex.Entry entry = book.reader.getEntry(entryName);
+        report.add(RunReport.Stage.COPY, System.nanoTime() - startTime, entry == null ? 0 : entry.getCompressedSize());
+    }
+
+    private static long getSize(@NotNull EPUBReader epubReader, @NotNull String entryName) {
+        ZipIndex.Entry entry = epubReader.getEntry(entryName);
+        return entry == null ? 0 : entry.getSize();
+    }
+
+    /**
+     * Wait until the converter is loaded.
+     */
+    @NotNull
+    private static VariantConverter awaitConverter(@NotNull Future<VariantConverter> variantConverter)
+            throws ExecuteException {
+        try {
+            return variantConverter.get();
+        } catch (ExecutionException e) {
+            throw new ExecuteException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new ExecuteException(e);
+        }
+    }
+
+    /**
+     * Rewrite an entry as a stream. An entry in which nothing was converted is copied from the source book
+     * instead, so that it is neither compressed again nor changed in any way. With a journal, an entry that it
+     * recorded is restored instead of being converted, and the entry is recorded otherwise. The cache is
+     * consulted and filled the same way.
+     *
+     * @param kind How the entry is rewritten, it is part of the version of its records
+     */
+    private void rewriteEntry(@NotNull Book book, @NotNull String entryName, @NotNull String kind,
+                              @NotNull EntryRewriter entryRewriter)
+            throws ZipEntryNotFoundException, ZipReadException, IOException, ExecuteException {
+        EPUBReader reader = book.reader;
+        EPUBWriter writer = book.writer;
+        VariantConverter converter = awaitConverter(variantConverter);
+        String version = converter.getVersion() + "/" + kind + "/" + REWRITER_VERSION;
+        ZipIndex.Entry source = reader.getEntry(entryName);
+        long lookupTime = System.nanoTime();
+        ConversionCache.Restored journaled = book.journal != null ?
+                book.journal.restore(reader, writer, entryName, version) : ConversionCache.Restored.MISSING;
+        if (journaled != ConversionCache.Restored.MISSING) {
+            restoredEntries.increment();
+            if (journaled == ConversionCache.Restored.UNCHANGED) {
+                skippedEntries.increment();
+            }
+            report.add(RunReport.Stage.LOOKUP, System.nanoTime() - lookupTime,
+                    source == null ? 0 : source.getCompressedSize());
+            return;
+        }
+        String cacheKey = null;
+        if (cache != null && !converter.isVersionKnown()) {
+            cacheBypassed = true;
+        } else if (cache != null) {
+            cacheKey = ConversionCache.key(reader, entryName, version);
+            ConversionCache.Restored restored = cache.restore(cacheKey, reader, writer, entryName);
+            if (restored != ConversionCache.Restored.MISSING) {
+                if (restored == ConversionCache.Restored.UNCHANGED) {
+                    skippedEntries.increment();
+                }
+                report.add(RunReport.Stage.LOOKUP, System.nanoTime() - lookupTime,
+                        source == null ? 0 : source.getCompressedSize());
+                return;
+            }
+        }
+        report.add(RunReport.Stage.LOOKUP, System.nanoTime() - lookupTime, 0);
+
+        ConversionJournal.Record record = book.journal != null && source != null ?
+                book.journal.newRecord(reader, entryName, source, version) : null;
+        ConversionCache.Record cacheRecord = cacheKey != null ? cache.newRecord(cacheKey) : null;
+        try {
+            long startTime = System.nanoTime();
+            RunReport.EntryTimer timer = new RunReport.EntryTimer();
+            boolean changed;
+            EPUBWriter.EntryOutputStream os = writer.newEntry(entryName);
+            try (InputStream is = timer.wrap(reader.readFileWithStream(entryName));
+                 OutputStream timedOs = timer.wrap(os)) {
+                changed = entryRewriter.rewrite(is, timedOs, timer.wrap(converter));
+                if (!changed) {
+                    os.discard();
+                } else {
+                    if (record != null) {
+                        os.addCopy(record.getChannel());
+                    }
+                    if (cacheRecord != null) {
+                        os.addCopy(cacheRecord.getChannel());
+                    }
+                }
+            } catch (CharConversionException e) {
+                // Name the entry, the rewriter does not know it
+                throw new CharConversionException(entryName + ": " + e.getMessage());
+            }
+            report.addEntry(book.name, entryName, timer, System.nanoTime() - startTime);
+            if (!changed) {
+                copyEntry(book, entryName);
+                skippedEntries.increment();
+            }
+            if (record != null) {
+                record.commit(changed ? os : null);
+            }
+            if (cacheRecord != null) {
+                cacheRecord.commit(changed ? os : null);
+            }
+        } finally {
+            if (record != null) {
+                record.close();
+            }
+            if (cacheRecord != null) {
+                cacheRecord.close();
+            }
+        }
+    }
+
+    private interface EntryRewriter {
+        /**
+         * @param converter The converter to use, it measures the time spent converting
+         * @return Whether anything was converted
+         */
+        boolean rewrite(@NotNull InputStream is, @NotNull OutputStream os, @NotNull VariantConverter converter)
+                throws IOException;
+    }
+
+    /**
+     * The state of a book being converted, shared by its tasks.
+     */
+    private static class Book {
+        private String name;
+        @Nullable
+        private ConversionJournal journal;
+        private EPUBReader reader;
+        private EPUBWriter writer;
+        /**
+         * When the last entry was written
+         */
+        private long finishTime;
+
+        @Contract(pure = true)
+        private Book(@NotNull String name, @Nullable ConversionJournal journal) {
+            this.name = name;
+            this.journal = journal;
+        }
+    }
+
+    private class ConvertTask implements Callable<Void> {
+        private String entryName;
+        private Book book;
+
+        @Contract(pure = true)
+        private ConvertTask(@NotNull String entryName, @NotNull Book book) {
+            this.entryName = entryName;
+            this.book = book;
+        }
+
+        public Void call() throws ZipEntryNotFoundException, ZipReadException, IOException, ExecuteException,
+                InterruptedException {
+            long size = getSize(book.reader, entryName);
+            if (rewriter == Rewriter.STREAM) {
+                // The chapter goes from the source entry to the new entry without being held in memory
+                long acquired = memoryBudget.acquire(Math.min(size, STREAM_BYTES));
+                try {
+                    rewriteEntry(book, entryName, "stream", (is, os, converter) ->
+                            new XhtmlRewriter(converter).rewrite(is, os));
+                } finally {
+                    memoryBudget.release(acquired);
+                }
+                return null;
+            }
+            long acquired = memoryBudget.acquire(size * DOM_BYTES_PER_BYTE);
+            try {
+                rewriteEntry(book, entryName, "dom", (is, os, converter) -> {
+                    BufferedInputStream input = new BufferedInputStream(is);
+                    Charset charset = XhtmlRewriter.detectCharset(input);
+                    String converted = doConvert(decode(input.readAllBytes(), charset), charset, converter);
+                    if (converted == null) {
+                        return false;
+                    }
+                    os.write(converted.getBytes(StandardCharsets.UTF_8));
+                    return true;
+                });
+            } finally {
+                memoryBudget.release(acquired);
+            }
+            return null;
+        }
+
+        /**
+         * Decode the chapter, invalid input must not be replaced silently.
+         */
+        @NotNull
+        private String decode(@NotNull byte[] bytes, @NotNull Charset charset) throws CharConversionException {
+            try {
+                return charset.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT)
+                        .decode(ByteBuffer.wrap(bytes))
+                        .toString();
+            } catch (CharacterCodingException e) {
+                throw new CharConversionException("Invalid " + charset.name() + " text");
+            }
+        }
+
+        /**
+         * Convert every text node of the chapter in place, in one pass over the document. Elements are not
+         * rebuilt, so inline markup such as ruby, emphasis and links is kept. A phrase split by markup is
+         * converted as separate texts.
+         *
+         * The result is UTF-8: jsoup turns the XML declaration into a comment, so a chapter in another encoding
+         * gets a meta element that declares UTF-8.
+         *
+         * @param charset The encoding of the source
+         * @return The converted chapter, or null if no text was converted
+         */
+        @Nullable
+        private String doConvert(@NotNull String text, @NotNull Charset charset,
+                                 @NotNull VariantConverter converter) {
+            // The byte order mark of the source does not belong to the result
+            Document document = Jsoup.parse(text.startsWith("\uFEFF") ? text.substring(1) : text);
+            if (!charset.equals(StandardCharsets.UTF_8)) {
+                document.charset(StandardCharsets.UTF_8);
+            }
+
+            List<TextNode> nodes = new ArrayList<>();
+            List<String> texts = new ArrayList<>();
+            for (Element element : document.getAllElements()) {
+                for (TextNode node : element.textNodes()) {
+                    if (!node.isBlank()) {
+                        nodes.add(node);
+                        texts.add(node.getWholeText());
+                    }
+                }
+            }
+            // Do zh-hant to zh-hans, all texts of the chapter at once
+            List<String> converted = converter.convertAll(texts);
+            boolean changed = false;
+            for (int i = 0; i < nodes.size(); ++i) {
+                // Leave the node as it is if nothing was converted
+                if (!converted.get(i).equals(texts.get(i))) {
+                    nodes.get(i).text(converted.get(i));
+                    changed = true;
+                }
+            }
+
+            return changed ? document.html() : null;
+        }
+    }
+
+    /**
+     * Convert the text elements of the NCX file, the rest of the file is written as it is.
+     */
+    private class NcxTask implements Callable<Void> {
+        private String entryName;
+        private Book book;
+
+        @Contract(pure = true)
+        private NcxTask(@NotNull String entryName, @NotNull Book book) {
+            this.entryName = entryName;
+            this.book = book;
+        }
+
+        public Void call() throws ZipEntryNotFoundException, ZipReadException, IOException, ExecuteException,
+                InterruptedException {
+            long acquired = memoryBudget.acquire(Math.min(getSize(book.reader, entryName), STREAM_BYTES));
+            try {
+                rewriteEntry(book, entryName, "ncx", (is, os, converter) ->
+                        XhtmlRewriter.forNcx(converter).rewrite(is, os));
+            } finally {
+                memoryBudget.release(acquired);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Find the books a command works on.
+ * <p>
+ * The returned maps are ordered, the key is the path of a book and the value is its path relative to
+ * where it was found, which commands use to lay out their output.
+ */
+class BookFinder {
+    private BookFinder() {
+    }
+
+    /**
+     * @param pattern A book, a directory that is searched recursively for *.epub files,
+     *                or a glob such as "/library/**&#47;*.epub"
+     */
+    @NotNull
+    static Map<Path, Path> find(@NotNull String pattern) throws IOException {
+        int globStart = indexOfGlob(pattern);
+        if (globStart == -1) {
+            Path path = Paths.get(pattern);
+            if (Files.isDirectory(path)) {
+                return walk(path, BookFinder::isEpub);
+            }
+            if (!Files.isRegularFile(path)) {
+                throw new NoSuchFileException(pattern);
+            }
+            Map<Path, Path> books = new LinkedHashMap<>();
+            books.put(path, path.getFileName());
+            return books;
+        }
+
+        // The directory part before the first glob component is walked, the rest is matched against relative paths
+        int separator = pattern.lastIndexOf('/', globStart);
+        Path root = Paths.get(separator == -1 ? "." : separator == 0 ? "/" : pattern.substring(0, separator));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern.substring(separator + 1));
+        return walk(root, path -> matcher.matches(root.relativize(path)));
+    }
+
+    /**
+     * Read a list file, one book per line. Blank lines and lines starting with '#' are ignored,
+     * relative paths are resolved against the directory of the list file.
+     * <p>
+     * An absolute path keeps only its file name as the relative path, and a relative path must not leave the
+     * directory of the list, so that the output of every book is a distinct path in the output directory.
+     *
+     * @throws IOException If two books have the same relative path, or a book is outside the directory of the list
+     */
+    @NotNull
+    static Map<Path, Path> readList(@NotNull Path listFile) throws IOException {
+        Path base = listFile.toAbsolutePath().getParent();
+        Map<Path, Path> books = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(listFile, StandardCharsets.UTF_8)) {
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            Path path = Paths.get(line);
+            Path relativePath = path.isAbsolute() ? path.getFileName() : path.normalize();
+            if (relativePath.startsWith("..")) {
+                throw new IOException(listFile + ": " + line + " is outside the directory of the list");
+            }
+            if (books.containsValue(relativePath)) {
+                throw new IOException(listFile + ": " + line + " has the same output path as another book: "
+                        + relativePath);
+            }
+            books.put(base.resolve(path), relativePath);
+        }
+        return books;
+    }
+
+    @NotNull
+    static Map<Path, Path> walk(@NotNull Path root, @NotNull PathMatcher matcher) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> stream = Files.walk(root)) {
+            paths = stream.filter(path -> Files.isRegularFile(path) && matcher.matches(path))
+                    .sorted().collect(Collectors.toList());
+        }
+        Map<Path, Path> books = new LinkedHashMap<>();
+        paths.forEach(path -> books.put(path, root.relativize(path)));
+        return books;
+    }
+
+    static boolean isEpub(@NotNull Path path) {
+        return path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".epub");
+    }
+
+    private static int indexOfGlob(@NotNull String pattern) {
+        for (int i = 0; i < pattern.length(); ++i) {
+            if ("*?[{".indexOf(pattern.charAt(i)) != -1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
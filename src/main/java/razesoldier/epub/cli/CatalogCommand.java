@@ -0,0 +1,137 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import razesoldier.epub.reader.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Scan a directory tree of EPUB files and write their metadata into a catalog file, see {@link CatalogFile}.
+ * Books are opened lazily and in parallel, only the OPF and NCX files are parsed, entry sizes come from
+ * the zip index.
+ */
+class CatalogCommand implements Command {
+    private CommandLine commandLine;
+
+    @Contract(pure = true)
+    CatalogCommand(@NotNull Context context) {
+        Options options = new Options();
+        options.addOption(null, "srcPath", true, null);
+        options.addOption(null, "output", true, null);
+        options.addOption(null, "threads", true, null);
+        commandLine = new CommandLineParser().parse(options, context.getCommandArgs());
+    }
+
+    public void execute() throws ExecuteException {
+        String srcPath = commandLine.getOptionValue("srcPath");
+        if (srcPath == null) {
+            throw new ExecuteException("Missing required option: --srcPath");
+        }
+        String output = commandLine.getOptionValue("output");
+        if (output == null) {
+            throw new ExecuteException("Missing required option: --output");
+        }
+        int threads = Workers.getThreads(commandLine);
+
+        Path root = Paths.get(srcPath);
+        List<Path> books;
+        try {
+            books = new ArrayList<>(BookFinder.walk(root, BookFinder::isEpub).keySet());
+        } catch (IOException e) {
+            throw new ExecuteException(e);
+        }
+
+        long startTime = System.nanoTime();
+        List<CatalogRecord> records = new ArrayList<>(books.size());
+        ForkJoinPool pool = Workers.newPool(threads);
+        try {
+            List<Future<CatalogRecord>> futures = new ArrayList<>(books.size());
+            for (Path book : books) {
+                futures.add(pool.submit(() -> scan(root, book)));
+            }
+            for (Future<CatalogRecord> future : futures) {
+                records.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            throw new ExecuteException(e);
+        } catch (ExecutionException e) {
+            throw new ExecuteException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        try {
+            CatalogFile.write(Paths.get(output), records);
+        } catch (IOException e) {
+            throw new ExecuteException(e);
+        }
+
+        long failed = records.stream().filter(record -> record.getError() != null).count();
+        long textBytes = records.stream().mapToLong(CatalogRecord::getTextBytes).sum();
+        System.out.printf("Scanned %d books (%d failed), %d bytes of XHTML text, in %d ms%n", records.size(), failed,
+                textBytes, (System.nanoTime() - startTime) / 1_000_000);
+    }
+
+    /**
+     * Read one book, a book that can not be read is recorded with the error instead of failing the scan.
+     * Any exception counts, a corrupt book can fail in the zip or XML layers as well as in the model.
+     */
+    @NotNull
+    private static CatalogRecord scan(@NotNull Path root, @NotNull Path path) {
+        String name = root.relativize(path).toString();
+        CatalogRecord record;
+        try {
+            record = new CatalogRecord(name, Files.size(path), Files.getLastModifiedTime(path).toMillis());
+        } catch (IOException e) {
+            record = new CatalogRecord(name, 0, 0);
+            record.setError(describe(e));
+            return record;
+        }
+        try (EPUBReader reader = new EPUBReader(path.toString(), EPUBReader.OpenMode.LAZY)) {
+            EPUBBook book = reader.getBook();
+            record.setMetadata(book.getBookName(), book.getLanguage(), book.getMetadata());
+            for (EPUBBook.Manifest manifest : book.getManifests().values()) {
+                ZipIndex.Entry entry = reader.getEntry(reader.getManifestEntryName(manifest.getFilePath()));
+                record.addEntry(manifest.getMediaType(), entry == null ? 0 : entry.getSize());
+            }
+            EPUBBook.NCX ncx = book.getNcx();
+            record.setNcx(ncx.getTitle(), ncx.getAuthor(), ncx.getNavPointMap().size());
+        } catch (Exception e) {
+            // The model wraps the failures of the layers below
+            boolean wrapped = (e instanceof InitException || e instanceof BookLoadException) && e.getCause() != null;
+            record.setError(describe(wrapped ? e.getCause() : e));
+        }
+        return record;
+    }
+
+    @NotNull
+    private static String describe(@NotNull Throwable throwable) {
+        return throwable.getMessage() != null ? throwable.getMessage() : throwable.toString();
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * The binary catalog file written by {@link CatalogCommand}.
+ * <p>
+ * Layout: the magic "EPCT", a version, a table of all distinct strings, then the records.
+ * Strings in records are indexes into the table, so repeated values such as languages, media types and
+ * metadata names are stored once. All integers are unsigned variable-length (LEB128) numbers.
+ */
+class CatalogFile {
+    private static final int MAGIC = 0x45504354; // "EPCT"
+    private static final int VERSION = 1;
+    private static final int NULL_STRING = 0;
+
+    private CatalogFile() {
+    }
+
+    static void write(@NotNull Path path, @NotNull List<CatalogRecord> records) throws IOException {
+        // Index 0 stands for null
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        for (CatalogRecord record : records) {
+            collectStrings(record, strings);
+        }
+
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            os.writeInt(MAGIC);
+            writeNumber(os, VERSION);
+            writeNumber(os, strings.size());
+            for (String string : strings.keySet()) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                writeNumber(os, bytes.length);
+                os.write(bytes);
+            }
+            writeNumber(os, records.size());
+            for (CatalogRecord record : records) {
+                writeString(os, strings, record.getPath());
+                writeNumber(os, record.getFileSize());
+                writeNumber(os, record.getLastModified());
+                writeString(os, strings, record.getError());
+                writeString(os, strings, record.getBookName());
+                writeString(os, strings, record.getLanguage());
+                writeNumber(os, record.getMetadata().size());
+                for (Map.Entry<String, String> entry : record.getMetadata().entrySet()) {
+                    writeString(os, strings, entry.getKey());
+                    writeString(os, strings, entry.getValue());
+                }
+                writeString(os, strings, record.getNcxTitle());
+                writeString(os, strings, record.getNcxAuthor());
+                writeNumber(os, record.getNavPointCount());
+                writeNumber(os, record.getMediaTypes().size());
+                for (Map.Entry<String, CatalogRecord.MediaTypeStat> entry : record.getMediaTypes().entrySet()) {
+                    writeString(os, strings, entry.getKey());
+                    writeNumber(os, entry.getValue().getEntries());
+                    writeNumber(os, entry.getValue().getBytes());
+                }
+            }
+        }
+    }
+
+    @NotNull
+    static List<CatalogRecord> read(@NotNull Path path) throws IOException {
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (is.readInt() != MAGIC) {
+                throw new IOException("Not a catalog file: " + path);
+            }
+            long version = readNumber(is);
+            if (version != VERSION) {
+                throw new IOException("Unsupported catalog version " + version + ": " + path);
+            }
+            String[] strings = new String[(int) readNumber(is) + 1];
+            for (int i = 1; i < strings.length; ++i) {
+                byte[] bytes = new byte[(int) readNumber(is)];
+                is.readFully(bytes);
+                strings[i] = bytes.length == 0 ? "" : new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            int count = (int) readNumber(is);
+            List<CatalogRecord> records = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                CatalogRecord record = new CatalogRecord(readString(is, strings), readNumber(is), readNumber(is));
+                String error = readString(is, strings);
+                if (error != null) {
+                    record.setError(error);
+                }
+                String bookName = readString(is, strings);
+                String language = readString(is, strings);
+                int metadataSize = (int) readNumber(is);
+                Map<String, String> metadata = new LinkedHashMap<>();
+                for (int j = 0; j < metadataSize; ++j) {
+                    metadata.put(readString(is, strings), readString(is, strings));
+                }
+                record.setMetadata(bookName, language, metadata);
+                record.setNcx(readString(is, strings), readString(is, strings), (int) readNumber(is));
+                int mediaTypeSize = (int) readNumber(is);
+                for (int j = 0; j < mediaTypeSize; ++j) {
+                    record.setMediaTypeStat(readString(is, strings), (int) readNumber(is), readNumber(is));
+                }
+                records.add(record);
+            }
+            return records;
+        }
+    }
+
+    private static void collectStrings(@NotNull CatalogRecord record, @NotNull Map<String, Integer> strings) {
+        List<String> values = new ArrayList<>(List.of(record.getPath(), record.getBookName(), record.getLanguage()));
+        values.add(record.getError());
+        values.add(record.getNcxTitle());
+        values.add(record.getNcxAuthor());
+        record.getMetadata().forEach((key, value) -> {
+            values.add(key);
+            values.add(value);
+        });
+        values.addAll(record.getMediaTypes().keySet());
+        for (String value : values) {
+            if (value != null) {
+                strings.putIfAbsent(value, strings.size() + 1);
+            }
+        }
+    }
+
+    private static void writeString(@NotNull DataOutput os, @NotNull Map<String, Integer> strings,
+                                    @Nullable String string) throws IOException {
+        writeNumber(os, string == null ? NULL_STRING : strings.get(string));
+    }
+
+    @Nullable
+    private static String readString(@NotNull DataInput is, @NotNull String[] strings) throws IOException {
+        int index = (int) readNumber(is);
+        if (index < 0 || index >= strings.length) {
+            throw new IOException("Corrupted catalog file");
+        }
+        return strings[index];
+    }
+
+    private static void writeNumber(@NotNull DataOutput os, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            os.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        os.writeByte((int) value);
+    }
+
+    private static long readNumber(@NotNull DataInput is) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = is.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupted catalog file");
+    }
+}
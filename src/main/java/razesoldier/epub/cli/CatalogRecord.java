@@ -0,0 +1,163 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What the catalog knows about one book, see {@link CatalogCommand}.
+ */
+class CatalogRecord {
+    private String path;
+    private long fileSize;
+    private long lastModified;
+    private String error;
+    private String bookName = "";
+    private String language = "";
+    private Map<String, String> metadata = new LinkedHashMap<>();
+    private String ncxTitle;
+    private String ncxAuthor;
+    private int navPointCount;
+    private Map<String, MediaTypeStat> mediaTypes = new LinkedHashMap<>();
+
+    @Contract(pure = true)
+    CatalogRecord(@NotNull String path, long fileSize, long lastModified) {
+        this.path = path;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+    }
+
+    void setError(@NotNull String error) {
+        this.error = error;
+    }
+
+    void setMetadata(@NotNull String bookName, @NotNull String language, @NotNull Map<String, String> metadata) {
+        this.bookName = bookName;
+        this.language = language;
+        this.metadata = metadata;
+    }
+
+    void setNcx(@Nullable String ncxTitle, @Nullable String ncxAuthor, int navPointCount) {
+        this.ncxTitle = ncxTitle;
+        this.ncxAuthor = ncxAuthor;
+        this.navPointCount = navPointCount;
+    }
+
+    /**
+     * Count a manifest entry of the given media type with its uncompressed size.
+     */
+    void addEntry(@NotNull String mediaType, long size) {
+        MediaTypeStat stat = mediaTypes.computeIfAbsent(mediaType, key -> new MediaTypeStat());
+        stat.entries++;
+        stat.bytes += size;
+    }
+
+    void setMediaTypeStat(@NotNull String mediaType, int entries, long bytes) {
+        MediaTypeStat stat = new MediaTypeStat();
+        stat.entries = entries;
+        stat.bytes = bytes;
+        mediaTypes.put(mediaType, stat);
+    }
+
+    /**
+     * @return The path of the book, relative to the scanned directory
+     */
+    @NotNull
+    String getPath() {
+        return path;
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return The reason why the book could not be read, or null if it was read
+     */
+    @Nullable
+    String getError() {
+        return error;
+    }
+
+    @NotNull
+    String getBookName() {
+        return bookName;
+    }
+
+    @NotNull
+    String getLanguage() {
+        return language;
+    }
+
+    @NotNull
+    Map<String, String> getMetadata() {
+        return metadata;
+    }
+
+    @Nullable
+    String getNcxTitle() {
+        return ncxTitle;
+    }
+
+    @Nullable
+    String getNcxAuthor() {
+        return ncxAuthor;
+    }
+
+    int getNavPointCount() {
+        return navPointCount;
+    }
+
+    /**
+     * @return A map, the key is a media type, the value is the number and total uncompressed size of its entries
+     */
+    @NotNull
+    Map<String, MediaTypeStat> getMediaTypes() {
+        return mediaTypes;
+    }
+
+    /**
+     * @return The total uncompressed size of the XHTML entries, which is the text to convert
+     */
+    long getTextBytes() {
+        MediaTypeStat stat = mediaTypes.get("application/xhtml+xml");
+        return stat == null ? 0 : stat.bytes;
+    }
+
+    static class MediaTypeStat {
+        private int entries;
+        private long bytes;
+
+        int getEntries() {
+            return entries;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Run the chapter tasks of one book on a shared executor.
+ * <p>
+ * Tasks should be submitted largest first: the longest chapters then start early instead of being the tail
+ * of the book. The first failure stops the book: tasks that have not started yet are skipped, and
+ * {@link #await()} reports the failure once the tasks that were already running have finished, so that
+ * no task still uses the reader or writer of the book after it is closed.
+ */
+class ChapterScheduler {
+    private ExecutorService executorService;
+    private List<Future<?>> futures = new ArrayList<>();
+    private volatile Throwable failure;
+
+    @Contract(pure = true)
+    ChapterScheduler(@NotNull ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    void submit(@NotNull Callable<?> task) {
+        futures.add(executorService.submit(() -> {
+            if (failure != null) {
+                return null;
+            }
+            try {
+                return task.call();
+            } catch (Throwable e) {
+                fail(e);
+                throw e;
+            }
+        }));
+    }
+
+    /**
+     * Skip the tasks that have not started yet and wait for the running ones, used when the book fails.
+     */
+    void cancel() {
+        fail(new IllegalStateException("The book has failed"));
+        try {
+            await();
+        } catch (ExecutionException ignored) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait for all tasks, without a timeout.
+     *
+     * @throws ExecutionException If a task failed, with the first failure as the cause
+     */
+    void await() throws ExecutionException, InterruptedException {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException ignored) {
+                // Reported below, after the other tasks
+            }
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+    }
+
+    private synchronized void fail(@NotNull Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+}
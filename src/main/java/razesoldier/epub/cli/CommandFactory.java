@@ -26,6 +26,12 @@ class CommandFactory {
         if ("hant2hans".equals(key)) {
             return new ZhHantToHansCommand(context);
         }
+        if ("catalog".equals(key)) {
+            return new CatalogCommand(context);
+        }
+        if ("compileDict".equals(key)) {
+            return new CompileDictionaryCommand(context);
+        }
         return null;
     }
 }
@@ -0,0 +1,65 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import razesoldier.epub.hant2hans.VariantConverterFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compile the comma-separated dictionary tables of "--dict" into the binary dictionary "--output",
+ * which "hant2hans --dict" maps into memory instead of parsing the tables on every start.
+ */
+class CompileDictionaryCommand implements Command {
+    private CommandLine commandLine;
+
+    @Contract(pure = true)
+    CompileDictionaryCommand(@NotNull Context context) {
+        Options options = new Options();
+        options.addOption(null, "dict", true, null);
+        options.addOption(null, "output", true, null);
+        commandLine = new CommandLineParser().parse(options, context.getCommandArgs());
+    }
+
+    public void execute() throws ExecuteException {
+        String dict = commandLine.getOptionValue("dict");
+        if (dict == null) {
+            throw new ExecuteException("Missing required option: --dict");
+        }
+        String output = commandLine.getOptionValue("output");
+        if (output == null) {
+            throw new ExecuteException("Missing required option: --output");
+        }
+        List<Path> tables = new ArrayList<>();
+        for (String table : dict.split(",")) {
+            tables.add(Paths.get(table));
+        }
+        try {
+            String version = VariantConverterFactory.compileDictionary(tables, Paths.get(output));
+            System.out.println("Compiled " + output + " (" + version + ")");
+        } catch (IOException e) {
+            throw new ExecuteException(e);
+        }
+    }
+}
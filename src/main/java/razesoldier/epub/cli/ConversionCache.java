@@ -0,0 +1,313 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import razesoldier.epub.reader.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * A cache of converted entries on disk, shared by all books and runs.
+ * <p>
+ * An entry is keyed by the SHA-256 of the converter version, the kind of entry and its uncompressed source, so
+ * identical chapters of different books and editions are converted once. A cache file holds the deflated result,
+ * which is added to the book without being compressed again, or no data if nothing was converted.
+ * <p>
+ * Several processes may share the directory: a file is written to a temporary file and then moved to its name,
+ * so it is either complete or absent, and a file removed by another process meanwhile is a miss.
+ * {@link #trim()} evicts the least recently used files, a hit updates the modification time of its file.
+ */
+class ConversionCache {
+    enum Restored {
+        /**
+         * The entry is not in the cache
+         */
+        MISSING,
+        /**
+         * The converted entry was written
+         */
+        CONVERTED,
+        /**
+         * Nothing in the entry is converted, it was copied from the source book
+         */
+        UNCHANGED
+    }
+
+    private static final int MAGIC = 0x45504343; // "EPCC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final long UNCHANGED = -1;
+    private static final long STALE_MILLIS = 24 * 60 * 60 * 1000;
+
+    private Path directory;
+    private long maxBytes;
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder written = new LongAdder();
+
+    /**
+     * @param maxBytes The size that {@link #trim()} reduces the cache to
+     */
+    @Contract(pure = true)
+    ConversionCache(@NotNull Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param version Identifies how the entry is converted
+     * @return The key of the entry
+     */
+    @NotNull
+    static String key(@NotNull EPUBReader reader, @NotNull String entryName, @NotNull String version)
+            throws ZipEntryNotFoundException, ZipReadException, IOException {
+        MessageDigest digest = newDigest();
+        digest.update(version.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest(digest, reader, entryName)) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return The SHA-256 of the content of the entry
+     */
+    @NotNull
+    static byte[] hash(@NotNull EPUBReader reader, @NotNull String entryName)
+            throws ZipEntryNotFoundException, ZipReadException, IOException {
+        return digest(newDigest(), reader, entryName);
+    }
+
+    @NotNull
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @NotNull
+    private static byte[] digest(@NotNull MessageDigest digest, @NotNull EPUBReader reader, @NotNull String entryName)
+            throws ZipEntryNotFoundException, ZipReadException, IOException {
+        try (InputStream is = reader.readFileWithStream(entryName)) {
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, length);
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Write the entry from the cache if it is there.
+     *
+     * @return How the entry was restored
+     */
+    @NotNull
+    Restored restore(@NotNull String key, @NotNull EPUBReader reader, @NotNull EPUBWriter writer,
+                     @NotNull String entryName) throws IOException, ZipEntryNotFoundException {
+        Path path = getPath(key);
+        Restored restored;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) != -1) {
+            }
+            header.flip();
+            if (header.remaining() != HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                misses.increment();
+                return Restored.MISSING;
+            }
+            long crc = header.getLong();
+            long size = header.getLong();
+            long compressedSize = header.getLong();
+            if (compressedSize == UNCHANGED) {
+                writer.copyFile(reader, entryName);
+                restored = Restored.UNCHANGED;
+            } else if (channel.size() == HEADER_SIZE + compressedSize) {
+                writer.writeDeflatedFile(entryName, crc, size, channel, HEADER_SIZE, compressedSize);
+                restored = Restored.CONVERTED;
+            } else {
+                misses.increment();
+                return Restored.MISSING;
+            }
+        } catch (NoSuchFileException e) {
+            misses.increment();
+            return Restored.MISSING;
+        }
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+            // Evicted by another process meanwhile
+        }
+        hits.increment();
+        return restored;
+    }
+
+    /**
+     * Start the cache file of an entry, its data is written by {@link EPUBWriter.EntryOutputStream#addCopy}.
+     */
+    @NotNull
+    Record newRecord(@NotNull String key) throws IOException {
+        Files.createDirectories(getPath(key).getParent());
+        return new Record(key);
+    }
+
+    /**
+     * Delete the least recently used files until the cache is not larger than its maximal size.
+     * It is done only if this instance added files, a file that can not be deleted is skipped.
+     */
+    void trim() throws IOException {
+        if (written.sum() == 0 || !Files.isDirectory(directory)) {
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        List<BasicFileAttributes> attributes = new ArrayList<>();
+        long total = 0;
+        try (Stream<Path> paths = Files.walk(directory, 2)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                try {
+                    BasicFileAttributes attribute = Files.readAttributes(path, BasicFileAttributes.class);
+                    if (path.getFileName().toString().endsWith(".tmp")) {
+                        // Being written by another process, or left by a process that was killed
+                        if (attribute.lastModifiedTime().toMillis() < System.currentTimeMillis() - STALE_MILLIS) {
+                            Files.deleteIfExists(path);
+                        }
+                    } else if (attribute.isRegularFile()) {
+                        files.add(path);
+                        attributes.add(attribute);
+                        total += attribute.size();
+                    }
+                } catch (NoSuchFileException ignored) {
+                }
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        List<Integer> order = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); ++i) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparing((Integer i) -> attributes.get(i).lastModifiedTime()));
+        for (int i : order) {
+            if (total <= maxBytes) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(files.get(i));
+                total -= attributes.get(i).size();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    @NotNull
+    private Path getPath(@NotNull String key) {
+        // Files are spread over 256 directories
+        return directory.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    class Record implements AutoCloseable {
+        private String key;
+        private Path file;
+        private FileChannel channel;
+        private boolean committed;
+
+        private Record(@NotNull String key) throws IOException {
+            this.key = key;
+            file = Files.createTempFile(getPath(key).getParent(), key, ".tmp");
+            channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            channel.position(HEADER_SIZE);
+        }
+
+        /**
+         * The channel that the deflated data of the entry is copied to.
+         */
+        @NotNull
+        FileChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * Add the file to the cache.
+         *
+         * @param entry The closed stream of the entry, or null if nothing in the entry was converted
+         */
+        void commit(@Nullable EPUBWriter.EntryOutputStream entry) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putLong(entry != null ? entry.getCrc() : 0)
+                    .putLong(entry != null ? entry.getSize() : 0)
+                    .putLong(entry != null ? entry.getCompressedSize() : UNCHANGED)
+                    .flip();
+            if (entry == null) {
+                channel.truncate(0);
+            }
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.close();
+            // Another process may have added the same file meanwhile, with the same content
+            Files.move(file, getPath(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+            written.increment();
+        }
+
+        /**
+         * Release the file, an uncommitted one is dropped.
+         */
+        public void close() throws IOException {
+            channel.close();
+            if (!committed) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import razesoldier.epub.reader.EPUBReader;
+import razesoldier.epub.reader.EPUBWriter;
+import razesoldier.epub.reader.ZipEntryNotFoundException;
+import razesoldier.epub.reader.ZipIndex;
+import razesoldier.epub.reader.ZipReadException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+/**
+ * The entries of a book that have been converted so far, so that an interrupted conversion can be resumed.
+ * <p>
+ * The journal is a directory next to the converted book, with a file per converted entry. A file holds the
+ * CRC, size and SHA-256 of the source entry, the version of the converter and the rewriter, and the deflated
+ * result, or no data if nothing in the entry was converted. A file is complete once it has its name, it is written
+ * to a temporary file first and forced to disk before it is renamed. An entry is restored only if its source entry
+ * and the version are the same, so the journal of a book that changed meanwhile is ignored. The directory is deleted when the book is done.
+ */
+class ConversionJournal {
+    private static final int MAGIC = 0x45504a45; // "EPJE"
+    private static final int VERSION = 2;
+    private static final int HASH_SIZE = 32;
+    private static final int HEADER_SIZE = 52 + HASH_SIZE;
+    private static final long UNCHANGED = -1;
+
+    private Path directory;
+
+    @Contract(pure = true)
+    ConversionJournal(@NotNull Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The journal directory of the given book
+     */
+    @NotNull
+    static Path getDirectory(@NotNull Path book) {
+        return book.resolveSibling(book.getFileName() + ".journal");
+    }
+
+    /**
+     * Write the entry from its record if it has one.
+     *
+     * @param version Identifies how entries are converted, a record of another version is ignored
+     * @return How the entry was restored
+     */
+    @NotNull
+    ConversionCache.Restored restore(@NotNull EPUBReader reader, @NotNull EPUBWriter writer,
+                                     @NotNull String entryName, @NotNull String version) throws IOException, ZipEntryNotFoundException, ZipReadException {
+        Path path = directory.resolve(fileName(entryName));
+        ZipIndex.Entry source = reader.getEntry(entryName);
+        if (source == null || !Files.isRegularFile(path)) {
+            return ConversionCache.Restored.MISSING;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            byte[] key = key(entryName, version);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + key.length).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) != -1) {
+            }
+            header.flip();
+            if (header.remaining() != HEADER_SIZE + key.length || header.getInt() != MAGIC || header.getInt() != VERSION
+                    || header.getLong() != source.getCrc() || header.getLong() != source.getSize()) {
+                return ConversionCache.Restored.MISSING;
+            }
+            // The CRC and size can match a changed entry, its content decides
+            byte[] hash = new byte[HASH_SIZE];
+            header.get(hash);
+            if (!Arrays.equals(hash, ConversionCache.hash(reader, entryName))) {
+                return ConversionCache.Restored.MISSING;
+            }
+            long crc = header.getLong();
+            long size = header.getLong();
+            long compressedSize = header.getLong();
+            if (header.getInt() != key.length || !header.slice().equals(ByteBuffer.wrap(key))) {
+                return ConversionCache.Restored.MISSING;
+            }
+            if (compressedSize == UNCHANGED) {
+                writer.copyFile(reader, entryName);
+                return ConversionCache.Restored.UNCHANGED;
+            } else if (channel.size() == HEADER_SIZE + key.length + compressedSize) {
+                writer.writeDeflatedFile(entryName, crc, size, channel, HEADER_SIZE + key.length, compressedSize);
+                return ConversionCache.Restored.CONVERTED;
+            }
+            return ConversionCache.Restored.MISSING;
+        }
+    }
+
+    /**
+     * Start the record of an entry, its data is written by {@link EPUBWriter.EntryOutputStream#addCopy}.
+     *
+     * @param source The source entry
+     */
+    @NotNull
+    Record newRecord(@NotNull EPUBReader reader, @NotNull String entryName, @NotNull ZipIndex.Entry source,
+                     @NotNull String version) throws IOException, ZipEntryNotFoundException, ZipReadException {
+        Files.createDirectories(directory);
+        return new Record(entryName, source, ConversionCache.hash(reader, entryName), key(entryName, version));
+    }
+
+    /**
+     * Delete the journal, once the book is complete.
+     */
+    void delete() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @NotNull
+    private static byte[] key(@NotNull String entryName, @NotNull String version) {
+        return (entryName + "\n" + version).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @NotNull
+    private static String fileName(@NotNull String entryName) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(entryName.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 16; ++i) {
+                builder.append(String.format("%02x", digest[i]));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    class Record implements AutoCloseable {
+        private String entryName;
+        private ZipIndex.Entry source;
+        private byte[] hash;
+        private byte[] key;
+        private Path file;
+        private FileChannel channel;
+        private boolean committed;
+
+        private Record(@NotNull String entryName, @NotNull ZipIndex.Entry source, @NotNull byte[] hash,
+                       @NotNull byte[] key) throws IOException {
+            this.entryName = entryName;
+            this.source = source;
+            this.hash = hash;
+            this.key = key;
+            file = Files.createTempFile(directory, "entry", ".tmp");
+            channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            channel.position(HEADER_SIZE + key.length);
+        }
+
+        /**
+         * The channel that the deflated data of the entry is copied to.
+         */
+        @NotNull
+        FileChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * Complete the record.
+         *
+         * @param entry The closed stream of the entry, or null if nothing in the entry was converted
+         */
+        void commit(@Nullable EPUBWriter.EntryOutputStream entry) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + key.length).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putLong(source.getCrc())
+                    .putLong(source.getSize())
+                    .put(hash)
+                    .putLong(entry != null ? entry.getCrc() : 0)
+                    .putLong(entry != null ? entry.getSize() : 0)
+                    .putLong(entry != null ? entry.getCompressedSize() : UNCHANGED)
+                    .putInt(key.length)
+                    .put(key)
+                    .flip();
+            if (entry == null) {
+                channel.truncate(0);
+            }
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            // The renamed file must not point to data that is not on the disk yet
+            channel.force(true);
+            channel.close();
+            Files.move(file, directory.resolve(fileName(entryName)), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        /**
+         * Release the record, an uncommitted one is dropped.
+         */
+        public void close() throws IOException {
+            channel.close();
+            if (!committed) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
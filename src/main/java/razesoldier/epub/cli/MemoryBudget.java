@@ -0,0 +1,74 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.jetbrains.annotations.Contract;
+
+/**
+ * A budget of bytes for the chapter data in memory, shared by all books of a run.
+ * <p>
+ * A task acquires its estimated size before it reads its chapter and releases it once the chapter is written,
+ * new chapters wait while the budget is used up. A request larger than the whole budget is reduced to it, so
+ * such a chapter runs alone instead of never. Tasks hold their share without waiting for other tasks, so
+ * waiting can not deadlock.
+ */
+class MemoryBudget {
+    private long capacity;
+    private long available;
+    private long peak;
+
+    /**
+     * @param capacity In bytes
+     */
+    @Contract(pure = true)
+    MemoryBudget(long capacity) {
+        this.capacity = capacity;
+        available = capacity;
+    }
+
+    /**
+     * Wait until the given number of bytes is available and take it.
+     *
+     * @return The bytes taken, to be given to {@link #release(long)}
+     */
+    synchronized long acquire(long bytes) throws InterruptedException {
+        long amount = Math.min(bytes, capacity);
+        while (available < amount) {
+            wait();
+        }
+        available -= amount;
+        peak = Math.max(peak, capacity - available);
+        return amount;
+    }
+
+    synchronized void release(long amount) {
+        available += amount;
+        notifyAll();
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The largest number of bytes that were taken at once
+     */
+    synchronized long getPeak() {
+        return peak;
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.jetbrains.annotations.NotNull;
+import razesoldier.epub.hant2hans.ConvertibleChars;
+import razesoldier.epub.hant2hans.VariantConverter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings of a conversion run, per stage, per entry and per book.
+ * <p>
+ * Stage times are summed over all threads, so with several threads they add up to more than the wall time.
+ * The time of a rewritten entry is split into reading (inflating the source), converting (the
+ * {@link VariantConverter}), writing (deflating and appending the result) and rewriting, the rest, which is
+ * tokenizing or parsing and serializing. The report is printed as a summary and can be written as JSON.
+ * <p>
+ * Percentiles come from histograms of a fixed size, a record of every entry is only kept for the JSON report.
+ */
+class RunReport {
+    enum Stage {
+        /**
+         * Opening books: the zip index and the OPF file
+         */
+        OPEN,
+        /**
+         * Sampling books with a {@link ScriptDetector}
+         */
+        PRESCAN,
+        /**
+         * Looking entries up in the journal and the cache, and restoring them
+         */
+        LOOKUP,
+        READ,
+        CONVERT,
+        REWRITE,
+        WRITE,
+        /**
+         * Copying the other entries without inflating them
+         */
+        COPY,
+        /**
+         * Writing the central directory and moving the book in place
+         */
+        FINISH;
+
+        @NotNull
+        String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    private LongAdder[] nanos = newAdders();
+    private LongAdder[] bytes = newAdders();
+    private LongAdder[] chars = newAdders();
+    private LongAdder[] counts = newAdders();
+    private boolean keepEntries;
+    private List<EntryRecord> entries = new ArrayList<>();
+    private List<BookRecord> books = new ArrayList<>();
+    private Histogram entryHistogram = new Histogram();
+    private Histogram bookHistogram = new Histogram();
+    private long startTime = System.nanoTime();
+
+    @NotNull
+    private static LongAdder[] newAdders() {
+        LongAdder[] adders = new LongAdder[Stage.values().length];
+        for (int i = 0; i < adders.length; ++i) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Keep a record of every rewritten entry, for {@link #writeJson}.
+     */
+    void setKeepEntries(boolean keepEntries) {
+        this.keepEntries = keepEntries;
+    }
+
+    void add(@NotNull Stage stage, long nanos, long bytes) {
+        add(stage, nanos, bytes, 0);
+    }
+
+    void add(@NotNull Stage stage, long nanos, long bytes, long chars) {
+        this.nanos[stage.ordinal()].add(nanos);
+        this.bytes[stage.ordinal()].add(bytes);
+        this.chars[stage.ordinal()].add(chars);
+        counts[stage.ordinal()].increment();
+    }
+
+    /**
+     * Add the stages of a rewritten entry.
+     *
+     * @param totalNanos The time of the entry, from the beginning of its reading to the end of its writing
+     */
+    void addEntry(@NotNull String book, @NotNull String entry, @NotNull EntryTimer timer, long totalNanos) {
+        long rewriteNanos = Math.max(0, totalNanos - timer.readNanos - timer.convertNanos - timer.writeNanos);
+        add(Stage.READ, timer.readNanos, timer.readBytes);
+        add(Stage.CONVERT, timer.convertNanos, 0, timer.convertedChars);
+        add(Stage.REWRITE, rewriteNanos, 0);
+        add(Stage.WRITE, timer.writeNanos, timer.writtenBytes);
+        entryHistogram.add(totalNanos);
+        if (!keepEntries) {
+            return;
+        }
+        synchronized (entries) {
+            entries.add(new EntryRecord(book, entry, timer, rewriteNanos, totalNanos));
+        }
+    }
+
+    /**
+     * @param status "ok", "skipped" or "failed"
+     */
+    void addBook(@NotNull String book, long nanos, @NotNull String status) {
+        bookHistogram.add(nanos);
+        synchronized (books) {
+            books.add(new BookRecord(book, nanos, status));
+        }
+    }
+
+    /**
+     * Print a short summary: the stages, and the percentiles of entry and book times.
+     */
+    void printSummary(@NotNull PrintStream out) {
+        out.printf("%-8s %10s %8s %12s %14s%n", "Stage", "ms", "count", "MiB", "chars");
+        for (Stage stage : Stage.values()) {
+            int i = stage.ordinal();
+            if (counts[i].sum() == 0) {
+                continue;
+            }
+            out.printf("%-8s %10.1f %8d %12.1f %14d%n", stage.getName(), nanos[i].sum() / 1e6, counts[i].sum(),
+                    bytes[i].sum() / 1048576.0, chars[i].sum());
+        }
+        printPercentiles(out, "Entries", entryHistogram);
+        printPercentiles(out, "Books", bookHistogram);
+    }
+
+    private static void printPercentiles(@NotNull PrintStream out, @NotNull String name,
+                                         @NotNull Histogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        out.printf("%s: %d, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n", name, histogram.getCount(),
+                histogram.percentile(50) / 1e6, histogram.percentile(90) / 1e6, histogram.percentile(99) / 1e6,
+                histogram.getMax() / 1e6);
+    }
+
+    /**
+     * Write the report as a JSON object.
+     */
+    void writeJson(@NotNull Path path) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path),
+                StandardCharsets.UTF_8))) {
+            writer.write("{\n  \"wallMillis\": " + millis(System.nanoTime() - startTime) + ",\n  \"stages\": {");
+            boolean first = true;
+            for (Stage stage : Stage.values()) {
+                int i = stage.ordinal();
+                writer.write((first ? "" : ",") + "\n    " + quote(stage.getName()) + ": {\"millis\": "
+                        + millis(nanos[i].sum()) + ", \"count\": " + counts[i].sum() + ", \"bytes\": "
+                        + bytes[i].sum() + ", \"chars\": " + chars[i].sum() + "}");
+                first = false;
+            }
+            writer.write("\n  },\n  \"books\": [");
+            synchronized (books) {
+                first = true;
+                for (BookRecord record : books) {
+                    writer.write((first ? "" : ",") + "\n    {\"book\": " + quote(record.book) + ", \"status\": "
+                            + quote(record.status) + ", \"millis\": " + millis(record.nanos) + "}");
+                    first = false;
+                }
+                writer.write("\n  ],\n  \"bookPercentiles\": " + percentilesJson(bookHistogram));
+            }
+            writer.write(",\n  \"entries\": [");
+            synchronized (entries) {
+                first = true;
+                for (EntryRecord record : entries) {
+                    writer.write((first ? "" : ",") + "\n    {\"book\": " + quote(record.book) + ", \"entry\": "
+                            + quote(record.entry) + ", \"bytes\": " + record.readBytes + ", \"chars\": "
+                            + record.convertedChars + ", \"millis\": " + millis(record.totalNanos) + ", \"read\": "
+                            + millis(record.readNanos) + ", \"convert\": " + millis(record.convertNanos)
+                            + ", \"rewrite\": " + millis(record.rewriteNanos) + ", \"write\": "
+                            + millis(record.writeNanos) + "}");
+                    first = false;
+                }
+                writer.write("\n  ],\n  \"entryPercentiles\": " + percentilesJson(entryHistogram));
+            }
+            writer.write("\n}\n");
+        }
+    }
+
+    @NotNull
+    private static String percentilesJson(@NotNull Histogram histogram) {
+        if (histogram.getCount() == 0) {
+            return "null";
+        }
+        return "{\"p50\": " + millis(histogram.percentile(50)) + ", \"p90\": " + millis(histogram.percentile(90))
+                + ", \"p99\": " + millis(histogram.percentile(99)) + ", \"max\": " + millis(histogram.getMax())
+                + "}";
+    }
+
+    @NotNull
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    @NotNull
+    static String quote(@NotNull String string) {
+        StringBuilder builder = new StringBuilder(string.length() + 2).append('"');
+        for (int i = 0; i < string.length(); ++i) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    /**
+     * Measures the stages of one entry, it is used by one thread.
+     */
+    static class EntryTimer {
+        private long readNanos;
+        private long readBytes;
+        private long convertNanos;
+        private long convertedChars;
+        private long writeNanos;
+        private long writtenBytes;
+
+        @NotNull
+        InputStream wrap(@NotNull InputStream is) {
+            return new FilterInputStream(is) {
+                public int read() throws IOException {
+                    long start = System.nanoTime();
+                    int b = super.read();
+                    readNanos += System.nanoTime() - start;
+                    if (b != -1) {
+                        ++readBytes;
+                    }
+                    return b;
+                }
+
+                public int read(@NotNull byte[] bytes, int offset, int length) throws IOException {
+                    long start = System.nanoTime();
+                    int count = super.read(bytes, offset, length);
+                    readNanos += System.nanoTime() - start;
+                    if (count > 0) {
+                        readBytes += count;
+                    }
+                    return count;
+                }
+            };
+        }
+
+        /**
+         * The time of closing the stream, which appends the entry, is counted as writing.
+         */
+        @NotNull
+        OutputStream wrap(@NotNull OutputStream os) {
+            return new FilterOutputStream(os) {
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                public void write(@NotNull byte[] bytes, int offset, int length) throws IOException {
+                    long start = System.nanoTime();
+                    out.write(bytes, offset, length);
+                    writeNanos += System.nanoTime() - start;
+                    writtenBytes += length;
+                }
+
+                public void close() throws IOException {
+                    long start = System.nanoTime();
+                    out.close();
+                    writeNanos += System.nanoTime() - start;
+                }
+            };
+        }
+
+        @NotNull
+        VariantConverter wrap(@NotNull VariantConverter converter) {
+            return new VariantConverter() {
+                public String convert(@NotNull String source) {
+                    long start = System.nanoTime();
+                    String result = converter.convert(source);
+                    convertNanos += System.nanoTime() - start;
+                    convertedChars += source.length();
+                    return result;
+                }
+
+                public void convert(@NotNull CharSequence source, int start, int end, @NotNull Appendable out)
+                        throws IOException {
+                    long startTime = System.nanoTime();
+                    converter.convert(source, start, end, out);
+                    convertNanos += System.nanoTime() - startTime;
+                    convertedChars += end - start;
+                }
+
+                @NotNull
+                public List<String> convertAll(@NotNull List<String> sources) {
+                    long start = System.nanoTime();
+                    List<String> results = converter.convertAll(sources);
+                    convertNanos += System.nanoTime() - start;
+                    for (String source : sources) {
+                        convertedChars += source.length();
+                    }
+                    return results;
+                }
+
+                @NotNull
+                public ConvertibleChars convertibleChars() {
+                    return converter.convertibleChars();
+                }
+
+                @NotNull
+                public String getVersion() {
+                    return converter.getVersion();
+                }
+
+                public boolean isVersionKnown() {
+                    return converter.isVersionKnown();
+                }
+            };
+        }
+    }
+
+    /**
+     * Counts durations in buckets that grow with the duration: 16 buckets per power of two, so a percentile
+     * is at most 1/16 above the exact one. Its size does not depend on the number of values.
+     */
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+        private LongAdder count = new LongAdder();
+        private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void add(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(index(value));
+            count.increment();
+            max.accumulate(value);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @return The upper bound of the bucket that holds the percentile, but not more than the maximum
+         */
+        long percentile(int percentile) {
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count.sum()));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); ++i) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            // The highest bit selects the power of two, the next bits the bucket within it
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = index % SUB_BUCKETS;
+            return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+
+    private static class EntryRecord {
+        private String book;
+        private String entry;
+        private long readBytes;
+        private long convertedChars;
+        private long readNanos;
+        private long convertNanos;
+        private long rewriteNanos;
+        private long writeNanos;
+        private long totalNanos;
+
+        private EntryRecord(@NotNull String book, @NotNull String entry, @NotNull EntryTimer timer,
+                            long rewriteNanos, long totalNanos) {
+            this.book = book;
+            this.entry = entry;
+            readBytes = timer.readBytes;
+            convertedChars = timer.convertedChars;
+            readNanos = timer.readNanos;
+            convertNanos = timer.convertNanos;
+            writeNanos = timer.writeNanos;
+            this.rewriteNanos = rewriteNanos;
+            this.totalNanos = totalNanos;
+        }
+    }
+
+    private static class BookRecord {
+        private String book;
+        private long nanos;
+        private String status;
+
+        private BookRecord(@NotNull String book, long nanos, @NotNull String status) {
+            this.book = book;
+            this.nanos = nanos;
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import razesoldier.epub.hant2hans.ConvertibleChars;
+import razesoldier.epub.hant2hans.VariantConverter;
+import razesoldier.epub.reader.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Estimate whether a book needs a conversion before any conversion work is done.
+ * <p>
+ * A book that declares a language other than Chinese and has no ideograph in its title is skipped without
+ * reading its chapters. Otherwise a few chapters spread over the spine are sampled, in the encoding detected
+ * as {@link XhtmlRewriter} does, and the text outside of tags is matched against the characters that the
+ * converter changes on their own, i.e. the traditional-only characters. A book whose ratio of traditional-only
+ * characters to CJK ideographs is below the threshold is already simplified, a book without ideographs is not
+ * Chinese.
+ */
+class ScriptDetector {
+    static final int SAMPLE_CHAPTERS = 5;
+    static final int SAMPLE_CHARS = 16 * 1024;
+    /**
+     * The primary subtags of the Chinese languages, "zh" and the individual languages of the macrolanguage.
+     */
+    private static final Set<String> CHINESE_LANGUAGES =
+            Set.of("zh", "cmn", "yue", "lzh", "wuu", "hak", "nan", "gan", "hsn", "cjy", "cpx", "czh", "czo", "mnp");
+
+    private Future<VariantConverter> variantConverter;
+    private double threshold;
+    private volatile ConvertibleChars traditionalChars;
+
+    /**
+     * @param threshold The minimal ratio of traditional-only characters, between 0 and 1
+     */
+    @Contract(pure = true)
+    ScriptDetector(@NotNull Future<VariantConverter> variantConverter, double threshold) {
+        this.variantConverter = variantConverter;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return Why the book does not need a conversion, or null if it should be converted
+     */
+    @Nullable
+    String check(@NotNull EPUBReader reader) throws ExecuteException, ZipReadException, ZipEntryNotFoundException,
+            IOException {
+        EPUBBook book = reader.getBook();
+        // The model reports "en" for a book without dc:language, only a declared language is trusted
+        String declaredLanguage = book.getMetadata().get("language");
+        String language = declaredLanguage == null || declaredLanguage.isEmpty() ? "unknown" : declaredLanguage;
+        if (declaredLanguage != null && !declaredLanguage.isEmpty() && !isChinese(declaredLanguage)
+                && !hasIdeographs(book.getBookName())) {
+            return "not a Chinese book (language " + language + ")";
+        }
+
+        ConvertibleChars traditional = getTraditionalChars();
+        long ideographs = 0;
+        long traditionalCount = 0;
+        for (String entryName : sampleChapters(reader, book)) {
+            try (BufferedInputStream input = new BufferedInputStream(reader.readFileWithStream(entryName));
+                 Reader chapter = new InputStreamReader(input, XhtmlRewriter.detectCharset(input))) {
+                char[] buffer = new char[SAMPLE_CHARS];
+                int length = 0;
+                int read;
+                while (length < buffer.length && (read = chapter.read(buffer, length, buffer.length - length)) != -1) {
+                    length += read;
+                }
+                boolean inTag = false;
+                for (int i = 0; i < length; ++i) {
+                    char c = buffer[i];
+                    if (c == '<' || c == '>') {
+                        inTag = c == '<';
+                    } else if (!inTag && c >= '一' && c <= '鿿') {
+                        ++ideographs;
+                        if (traditional.contains(c)) {
+                            ++traditionalCount;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (ideographs == 0) {
+            return "no Chinese text (language " + language + ")";
+        }
+        double ratio = (double) traditionalCount / ideographs;
+        if (ratio < threshold) {
+            return String.format("%.2f%% traditional characters (language %s)", ratio * 100, language);
+        }
+        return null;
+    }
+
+    /**
+     * @param language A language tag such as "zh-TW", "zh_Hant" or "yue"
+     */
+    @Contract(pure = true)
+    static boolean isChinese(@NotNull String language) {
+        String primary = language.split("[-_]", 2)[0].toLowerCase();
+        return CHINESE_LANGUAGES.contains(primary);
+    }
+
+    @Contract(value = "null -> false", pure = true)
+    private static boolean hasIdeographs(@Nullable String text) {
+        if (text == null) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); ++i) {
+            if (text.charAt(i) >= '一' && text.charAt(i) <= '鿿') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Spine chapters spread evenly over the book, the first ones are often a cover or a title page.
+     */
+    @NotNull
+    private static List<String> sampleChapters(@NotNull EPUBReader reader, @NotNull EPUBBook book) {
+        Map<String, EPUBBook.Manifest> manifests = book.getManifests();
+        List<String> spine = new ArrayList<>();
+        for (String id : book.getSpines().getSpineList()) {
+            EPUBBook.Manifest manifest = manifests.get(id);
+            if (manifest != null && reader.getEntry(reader.getManifestEntryName(manifest.getFilePath())) != null) {
+                spine.add(reader.getManifestEntryName(manifest.getFilePath()));
+            }
+        }
+        if (spine.size() <= SAMPLE_CHAPTERS) {
+            return spine;
+        }
+        List<String> samples = new ArrayList<>(SAMPLE_CHAPTERS);
+        for (int i = 1; i <= SAMPLE_CHAPTERS; ++i) {
+            samples.add(spine.get(i * spine.size() / (SAMPLE_CHAPTERS + 1)));
+        }
+        return samples;
+    }
+
+    @NotNull
+    private ConvertibleChars getTraditionalChars() throws ExecuteException {
+        if (traditionalChars == null) {
+            synchronized (this) {
+                if (traditionalChars == null) {
+                    try {
+                        traditionalChars = traditionalChars(variantConverter.get());
+                    } catch (ExecutionException e) {
+                        throw new ExecuteException(e.getCause());
+                    } catch (InterruptedException e) {
+                        throw new ExecuteException(e);
+                    }
+                }
+            }
+        }
+        return traditionalChars;
+    }
+
+    /**
+     * The CJK ideographs that the converter changes on their own.
+     * They are converted in one call, one per line, so that a cache does not keep them.
+     */
+    @NotNull
+    static ConvertibleChars traditionalChars(@NotNull VariantConverter converter) {
+        StringBuilder builder = new StringBuilder(2 * ('鿿' - '一' + 1));
+        for (char c = '一'; c <= '鿿'; ++c) {
+            builder.append(c).append('\n');
+        }
+        String source = builder.toString();
+        String converted = converter.convert(source);
+        ConvertibleChars.Builder traditional = new ConvertibleChars.Builder();
+        if (converted.length() == source.length()) {
+            for (int i = 0; i < source.length(); i += 2) {
+                if (converted.charAt(i) != source.charAt(i)) {
+                    traditional.add(source.charAt(i));
+                }
+            }
+            return traditional.build();
+        }
+        // Some character was converted into several ones, convert them one by one
+        for (char c = '一'; c <= '鿿'; ++c) {
+            String key = String.valueOf(c);
+            if (!converter.convert(key).equals(key)) {
+                traditional.add(c);
+            }
+        }
+        return traditional.build();
+    }
+}
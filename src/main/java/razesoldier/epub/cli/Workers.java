@@ -0,0 +1,62 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helpers for the thread budget of commands, set by the "--threads" option.
+ */
+class Workers {
+    private Workers() {
+    }
+
+    /**
+     * @return The value of "--threads", the number of available processors by default
+     */
+    static int getThreads(@NotNull CommandLine commandLine) throws ExecuteException {
+        String threads = commandLine.getOptionValue("threads");
+        if (threads == null) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        try {
+            int value = Integer.parseInt(threads);
+            if (value > 0) {
+                return value;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new ExecuteException("Invalid value of --threads: " + threads);
+    }
+
+    /**
+     * Create a pool that never runs more than the given number of threads.
+     * <p>
+     * A plain ForkJoinPool starts spare threads when its workers block in a join, which would break the budget.
+     * Here the pool is saturated instead: a worker waiting for a subtask runs queued tasks itself.
+     * Tasks are taken in submission order (async mode), which keeps the largest-first order of chapters.
+     */
+    @NotNull
+    static ForkJoinPool newPool(int threads) {
+        return new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true,
+                0, threads, 1, pool -> true, 60, TimeUnit.SECONDS);
+    }
+}
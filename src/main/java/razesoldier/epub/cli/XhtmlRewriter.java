@@ -0,0 +1,448 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import razesoldier.epub.hant2hans.VariantConverter;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Convert the character data of a XHTML document as a stream, without building a DOM.
+ * <p>
+ * The document is split into markup (tags, comments, CDATA sections, processing instructions, the doctype) and
+ * text. Markup is written as it is read, text is converted. The content of script and style elements is
+ * treated as markup. Tokens are converted and written by windows of about {@link #WINDOW} chars, so the memory
+ * used does not depend on the size of the document.
+ * <p>
+ * The encoding is detected from the byte order mark, the first bytes or the encoding of the XML declaration,
+ * UTF-8 by default, and the output uses the same encoding. A document that is not valid in its encoding fails
+ * with a {@link CharConversionException} instead of having its text replaced. A converted character that the
+ * encoding of the document can not represent, such as a simplified character in Big5, is written as a
+ * character reference. Character references of the source such as &amp;#x66F8; are markup and are not converted.
+ * <p>
+ * {@link #forNcx(VariantConverter)} converts only the content of the text elements of a NCX file, the rest of
+ * its text is whitespace between elements or content such as ids that must be kept.
+ */
+class XhtmlRewriter {
+    static final int WINDOW = 64 * 1024;
+
+    /**
+     * Where a long text can be cut without splitting a phrase.
+     */
+    private static final String BREAKS = "\n\r\t 　。！？，；：、」』）…";
+    private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([A-Za-z][A-Za-z0-9._-]*)[\"']");
+    /**
+     * How many bytes the XML declaration is looked for in
+     */
+    private static final int DECLARATION_BYTES = 256;
+
+    private VariantConverter converter;
+    /**
+     * The only element whose text is converted, or null to convert all text
+     */
+    @Nullable
+    private String textElement;
+    private boolean inTextElement;
+    private Charset charset;
+    /**
+     * Encodes the converted texts, null if the encoding can represent every character
+     */
+    @Nullable
+    private CharsetEncoder textEncoder;
+    private Reader reader;
+    private Writer writer;
+    private char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+
+    // The window of pending tokens
+    private List<String> tokens = new ArrayList<>();
+    private List<Integer> textIndexes = new ArrayList<>();
+    private List<String> texts = new ArrayList<>();
+    private int pendingChars;
+    private boolean changed;
+
+    @Contract(pure = true)
+    XhtmlRewriter(@NotNull VariantConverter converter) {
+        this.converter = converter;
+    }
+
+    @NotNull
+    @Contract(pure = true)
+    static XhtmlRewriter forNcx(@NotNull VariantConverter converter) {
+        XhtmlRewriter rewriter = new XhtmlRewriter(converter);
+        rewriter.textElement = "text";
+        return rewriter;
+    }
+
+    /**
+     * Rewrite a document, the streams are not closed.
+     *
+     * @return Whether any text was converted, the output is identical to the input otherwise
+     */
+    boolean rewrite(@NotNull InputStream in, @NotNull OutputStream out) throws IOException {
+        BufferedInputStream input = new BufferedInputStream(in);
+        charset = detectCharset(input);
+        // Invalid input must not be replaced silently
+        reader = new InputStreamReader(input, charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT));
+        writer = new BufferedWriter(new OutputStreamWriter(out, charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)), 8192);
+        textEncoder = charset.name().startsWith("UTF-") ? null : charset.newEncoder();
+
+        try {
+            read();
+        } catch (MalformedInputException | UnmappableCharacterException e) {
+            throw new CharConversionException("Invalid " + charset.name() + " text");
+        }
+        writer.flush();
+        return changed;
+    }
+
+    private void read() throws IOException {
+        StringBuilder text = new StringBuilder();
+        StringBuilder markup = new StringBuilder();
+        while (peek(0) != -1) {
+            if (peek(0) == '<') {
+                addText(text);
+                readMarkup(markup);
+                addToken(markup.toString(), false);
+                markup.setLength(0);
+                continue;
+            }
+            // Copy the text up to the next '<' from the buffer at once
+            int end = position;
+            while (end < limit && buffer[end] != '<') {
+                ++end;
+            }
+            text.append(buffer, position, end - position);
+            position = end;
+            if (text.length() >= WINDOW) {
+                cutText(text);
+            }
+        }
+        addText(text);
+        flush();
+    }
+
+    /**
+     * Detect the encoding of a document from its first bytes, the stream is reset to where it was.
+     */
+    @NotNull
+    static Charset detectCharset(@NotNull BufferedInputStream input) throws IOException {
+        input.mark(4);
+        byte[] head = new byte[4];
+        int length = input.readNBytes(head, 0, 4);
+        input.reset();
+        if (length >= 2) {
+            int b0 = head[0] & 0xFF;
+            int b1 = head[1] & 0xFF;
+            // The byte order mark is decoded as U+FEFF and encoded again, it is kept
+            if ((b0 == 0xFE && b1 == 0xFF) || (b0 == 0x00 && b1 == '<')) {
+                return StandardCharsets.UTF_16BE;
+            }
+            if ((b0 == 0xFF && b1 == 0xFE) || (b0 == '<' && b1 == 0x00)) {
+                return StandardCharsets.UTF_16LE;
+            }
+        }
+        Charset declared = declaredCharset(input);
+        return declared != null ? declared : StandardCharsets.UTF_8;
+    }
+
+    /**
+     * @return The encoding of the XML declaration, or null if there is none
+     */
+    @Nullable
+    private static Charset declaredCharset(@NotNull BufferedInputStream input) throws IOException {
+        input.mark(DECLARATION_BYTES);
+        byte[] head = input.readNBytes(DECLARATION_BYTES);
+        input.reset();
+        // The declaration itself is ASCII in every encoding that is not detected from the first bytes
+        String text = new String(head, StandardCharsets.ISO_8859_1);
+        int end = text.indexOf("?>");
+        if (!text.startsWith("<?xml") || end == -1) {
+            return null;
+        }
+        Matcher matcher = ENCODING.matcher(text.substring(0, end));
+        if (!matcher.find()) {
+            return null;
+        }
+        try {
+            return Charset.forName(matcher.group(1));
+        } catch (IllegalArgumentException e) {
+            throw new CharConversionException("Unsupported encoding: " + matcher.group(1));
+        }
+    }
+
+    private void readMarkup(@NotNull StringBuilder markup) throws IOException {
+        if (startsWith("<!--")) {
+            readUntil(markup, "-->");
+        } else if (startsWith("<![CDATA[")) {
+            readUntil(markup, "]]>");
+        } else if (startsWith("<?")) {
+            readUntil(markup, "?>");
+        } else if (startsWith("<!")) {
+            readDeclaration(markup);
+        } else {
+            readTag(markup);
+            String name = tagName(markup);
+            if (textElement != null) {
+                if (name.startsWith("/")) {
+                    inTextElement = inTextElement && !localName(name.substring(1)).equals(textElement);
+                } else if (localName(name).equals(textElement)) {
+                    inTextElement = !endsWith(markup, "/>");
+                }
+                return;
+            }
+            if ((name.equalsIgnoreCase("script") || name.equalsIgnoreCase("style"))
+                    && !endsWith(markup, "/>")) {
+                readRawText(markup, name);
+            }
+        }
+    }
+
+    /**
+     * Read a tag up to its '>', which may appear in quoted attribute values.
+     */
+    private void readTag(@NotNull StringBuilder markup) throws IOException {
+        int quote = 0;
+        int c;
+        while ((c = next()) != -1) {
+            markup.append((char) c);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read a declaration such as the doctype, which may have an internal subset in brackets.
+     */
+    private void readDeclaration(@NotNull StringBuilder markup) throws IOException {
+        int quote = 0;
+        int depth = 0;
+        int c;
+        while ((c = next()) != -1) {
+            markup.append((char) c);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '[') {
+                ++depth;
+            } else if (c == ']') {
+                --depth;
+            } else if (c == '>' && depth <= 0) {
+                return;
+            }
+        }
+    }
+
+    private void readUntil(@NotNull StringBuilder markup, @NotNull String terminator) throws IOException {
+        int c;
+        while ((c = next()) != -1) {
+            markup.append((char) c);
+            if (c == terminator.charAt(terminator.length() - 1) && endsWith(markup, terminator)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read the content of a script or style element, up to its end tag.
+     */
+    private void readRawText(@NotNull StringBuilder markup, @NotNull String name) throws IOException {
+        while (peek(0) != -1) {
+            if (peek(0) == '<' && peek(1) == '/') {
+                boolean matches = true;
+                for (int i = 0; i < name.length() && matches; ++i) {
+                    int c = peek(2 + i);
+                    matches = c != -1 && Character.toLowerCase((char) c) == Character.toLowerCase(name.charAt(i));
+                }
+                if (matches) {
+                    return;
+                }
+            }
+            markup.append((char) next());
+        }
+    }
+
+    @NotNull
+    private static String tagName(@NotNull StringBuilder tag) {
+        // The name of an end tag keeps its '/'
+        int end = tag.length() > 1 && tag.charAt(1) == '/' ? 2 : 1;
+        while (end < tag.length() && !Character.isWhitespace(tag.charAt(end)) && tag.charAt(end) != '/'
+                && tag.charAt(end) != '>') {
+            ++end;
+        }
+        return tag.substring(1, end);
+    }
+
+    @NotNull
+    private static String localName(@NotNull String name) {
+        return name.substring(name.indexOf(':') + 1);
+    }
+
+    /**
+     * Add the beginning of a long text up to a break, so that a window does not grow with the text.
+     */
+    private void cutText(@NotNull StringBuilder text) throws IOException {
+        int cut = text.length();
+        for (int i = text.length() - 1; i >= text.length() / 2; --i) {
+            if (BREAKS.indexOf(text.charAt(i)) != -1) {
+                cut = i + 1;
+                break;
+            }
+        }
+        if (Character.isHighSurrogate(text.charAt(cut - 1))) {
+            --cut;
+        }
+        addToken(text.substring(0, cut), true);
+        text.delete(0, cut);
+    }
+
+    private void addText(@NotNull StringBuilder text) throws IOException {
+        if (text.length() != 0) {
+            addToken(text.toString(), true);
+            text.setLength(0);
+        }
+    }
+
+    private void addToken(@NotNull String token, boolean isText) throws IOException {
+        if (isText && (textElement == null || inTextElement)) {
+            textIndexes.add(tokens.size());
+            texts.add(token);
+        }
+        tokens.add(token);
+        pendingChars += token.length();
+        if (pendingChars >= WINDOW) {
+            flush();
+        }
+    }
+
+    /**
+     * Convert the texts of the window at once and write all its tokens.
+     */
+    private void flush() throws IOException {
+        if (!texts.isEmpty()) {
+            List<String> converted = converter.convertAll(texts);
+            for (int i = 0; i < converted.size(); ++i) {
+                if (!changed && !converted.get(i).equals(texts.get(i))) {
+                    changed = true;
+                }
+                tokens.set(textIndexes.get(i), escapeUnmappable(converted.get(i)));
+            }
+        }
+        for (String token : tokens) {
+            writer.write(token);
+        }
+        tokens.clear();
+        textIndexes.clear();
+        texts.clear();
+        pendingChars = 0;
+    }
+
+    /**
+     * Replace the characters that the encoding of the document can not represent with character references.
+     */
+    @NotNull
+    private String escapeUnmappable(@NotNull String text) {
+        if (textEncoder == null || textEncoder.canEncode(text)) {
+            return text;
+        }
+        StringBuilder builder = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            String c = new String(Character.toChars(codePoint));
+            if (textEncoder.canEncode(c)) {
+                builder.append(c);
+            } else {
+                builder.append("&#x").append(Integer.toHexString(codePoint).toUpperCase()).append(';');
+            }
+            i += Character.charCount(codePoint);
+        }
+        return builder.toString();
+    }
+
+    private boolean startsWith(@NotNull String prefix) throws IOException {
+        for (int i = 0; i < prefix.length(); ++i) {
+            if (peek(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean endsWith(@NotNull StringBuilder builder, @NotNull String suffix) {
+        int start = builder.length() - suffix.length();
+        if (start < 0) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); ++i) {
+            if (builder.charAt(start + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The char at the given offset from the current position, or -1 at the end of the document
+     */
+    private int peek(int offset) throws IOException {
+        while (position + offset >= limit) {
+            if (position != 0) {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+            }
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read == -1) {
+                return -1;
+            }
+            limit += read;
+        }
+        return buffer[position + offset];
+    }
+
+    private int next() throws IOException {
+        int c = peek(0);
+        if (c != -1) {
+            ++position;
+        }
+        return c;
+    }
+}
@@ -19,124 +19,330 @@ package razesoldier.epub.cli;
 
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
-import org.w3c.dom.DOMImplementation;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.ls.DOMImplementationLS;
-import org.w3c.dom.ls.LSSerializer;
-import org.xml.sax.SAXException;
+import org.jetbrains.annotations.Nullable;
+import razesoldier.epub.hant2hans.CachingConverter;
 import razesoldier.epub.hant2hans.VariantConverter;
 import razesoldier.epub.hant2hans.VariantConverterFactory;
-import razesoldier.epub.reader.*;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+/**
+ * Convert a book, or a batch of books, from zh-hant to zh-hans.
+ * <p>
+ * "--srcPath" is a book, a directory or a glob, "--list" is a file listing one book per line. With a single book
+ * "--output" is the converted book, with a batch it is a directory that mirrors the layout of the sources.
+ * Without "--output" books are converted in place. All books share one converter, and both books and their
+ * chapters run on one pool of "--threads" threads. "--dict" selects the built-in converter with the given
+ * comma-separated dictionary tables, or with a dictionary compiled by "compileDict", instead of mynlp.
+ * "--rewriter" is "stream" (the default) to rewrite chapters as streams, or "dom" to rewrite them with jsoup.
+ * With "--prescan" a book is sampled first, and skipped if less than the given percentage of its ideographs are
+ * traditional-only characters, see {@link ScriptDetector}. With "--journal" the converted entries of a book are
+ * recorded as they complete, and a conversion that was interrupted resumes where it stopped, see
+ * {@link ConversionJournal}. "--cache" is a directory of converted entries shared by all books and runs, at most
+ * "--cacheSize" MiB (1024 by default), see {@link ConversionCache}. "--memoryBudget" limits the chapter data in
+ * memory to the given MiB, a half of the maximal heap by default, see {@link MemoryBudget}. At the end the time
+ * spent in each stage and the percentiles of entry and book times are printed, and "--report" writes them with
+ * the times of every entry and book to the given JSON file, see {@link RunReport}.
+ */
 class ZhHantToHansCommand implements Command {
     private CommandLine commandLine;
-    private VariantConverter variantConverter;
+    private CompletableFuture<VariantConverter> variantConverter;
 
     @Contract(pure = true)
     ZhHantToHansCommand(@NotNull Context context) {
         Options options = new Options();
         options.addOption(null, "srcPath", true, null);
+        options.addOption(null, "list", true, null);
+        options.addOption(null, "output", true, null);
+        options.addOption(null, "threads", true, null);
+        options.addOption(null, "dict", true, null);
+        options.addOption(null, "rewriter", true, null);
+        options.addOption(null, "prescan", true, null);
+        options.addOption(null, "journal", false, null);
+        options.addOption(null, "cache", true, null);
+        options.addOption(null, "cacheSize", true, null);
+        options.addOption(null, "memoryBudget", true, null);
+        options.addOption(null, "report", true, null);
         commandLine = new CommandLineParser().parse(options, context.getCommandArgs());
-        variantConverter = VariantConverterFactory.newConverter();
     }
 
     public void execute() throws ExecuteException {
+        // Load the dictionary in the background, opening and parsing the books does not need it
+        variantConverter = loadConverter(commandLine.getOptionValue("dict"));
+
         String srcPath = commandLine.getOptionValue("srcPath");
-        if (srcPath == null) {
+        String list = commandLine.getOptionValue("list");
+        if (srcPath == null && list == null) {
             throw new ExecuteException("Missing required option: --srcPath");
         }
+        String output = commandLine.getOptionValue("output");
+        int threads = Workers.getThreads(commandLine);
+        BookConverter.Rewriter rewriter = getRewriter();
+        ScriptDetector scriptDetector = getScriptDetector();
+        ConversionCache cache = getCache();
+        MemoryBudget memoryBudget = getMemoryBudget();
 
-        try (EPUBReader epubReader = new EPUBReader(srcPath)) {
-            EPUBBook epubBook = epubReader.getBook();
-            // Use multithreading in batch operations that convert Manifest.
-            // Since the IO target of each task are different,
-            // we don't have to worry about resource sharing conflicts.
-            ExecutorService executorService = Executors.newFixedThreadPool(3);
-            for (Map.Entry<String, EPUBBook.Manifest> entry : epubBook.getManifests().entrySet()) {
-                EPUBBook.Manifest manifest = entry.getValue();
-                if (!manifest.getMediaType().equals("application/xhtml+xml")) {
-                    continue;
+        ForkJoinPool pool = Workers.newPool(threads);
+        BookConverter bookConverter = new BookConverter(variantConverter, pool, rewriter);
+        bookConverter.setScriptDetector(scriptDetector);
+        bookConverter.setJournaled(commandLine.hasOptionByLong("journal"));
+        bookConverter.setCache(cache);
+        bookConverter.setMemoryBudget(memoryBudget);
+        bookConverter.getReport().setKeepEntries(commandLine.getOptionValue("report") != null);
+        try {
+            if (list == null && Files.isRegularFile(Paths.get(srcPath))) {
+                Path dst = output != null ? Paths.get(output) : null;
+                String skipReason = bookConverter.convert(Paths.get(srcPath), dst);
+                if (skipReason != null) {
+                    System.out.printf("SKIPPED %s: %s%n", srcPath, skipReason);
+                }
+                return;
+            }
+            Map<Path, Path> books;
+            try {
+                books = list != null ? BookFinder.readList(Paths.get(list)) : BookFinder.find(srcPath);
+            } catch (IOException e) {
+                throw new ExecuteException(e);
+            }
+            convertBatch(bookConverter, pool, books, output != null ? Paths.get(output) : null);
+        } finally {
+            pool.shutdownNow();
+            printCounters(bookConverter, cache, memoryBudget);
+            finishReport(bookConverter.getReport(), commandLine.getOptionValue("report"));
+            if (cache != null) {
+                try {
+                    cache.trim();
+                } catch (IOException e) {
+                    System.out.printf("Failed to trim the cache: %s%n", e.getMessage());
                 }
-                executorService.execute(new ConvertTask(manifest, epubReader, variantConverter));
             }
-            executorService.shutdown();
+        }
+    }
 
-            String ncxText = handleNCX(epubReader.readFileWithStream(epubBook.getSpines().getSpineFilePath()));
-            epubReader.writeFile(epubBook.getSpines().getSpineFilePath(), ncxText);
+    /**
+     * Print the counters of the run, for a single book as well as for a batch.
+     */
+    private void printCounters(@NotNull BookConverter bookConverter, @Nullable ConversionCache cache,
+                               @NotNull MemoryBudget memoryBudget) {
+        System.out.printf("Unchanged entries copied as they are: %d%n", bookConverter.getSkippedEntries());
+        System.out.printf("Chapter data in memory: at most %.1f of %d MiB%n", memoryBudget.getPeak() / 1048576.0,
+                memoryBudget.getCapacity() / 1024 / 1024);
+        if (bookConverter.getRestoredEntries() != 0) {
+            System.out.printf("Entries restored from journals: %d%n", bookConverter.getRestoredEntries());
+        }
+        if (cache != null && bookConverter.isCacheBypassed()) {
+            System.out.println("Conversion cache: not used, the version of the converter is not known");
+        } else if (cache != null) {
+            long lookups = cache.getHits() + cache.getMisses();
+            System.out.printf("Conversion cache: %d hits, %d misses (%.1f%% hit rate)%n", cache.getHits(),
+                    cache.getMisses(), lookups == 0 ? 0.0 : cache.getHits() * 100.0 / lookups);
+        }
+        VariantConverter converter = variantConverter.getNow(null);
+        if (converter instanceof CachingConverter) {
+            CachingConverter cachingConverter = (CachingConverter) converter;
+            System.out.printf("Converter cache: %d hits, %d misses%n", cachingConverter.getHits(),
+                    cachingConverter.getMisses());
+        }
+    }
 
-            executorService.awaitTermination(1, TimeUnit.MINUTES); // TODO: For large EPUB files, it may time out
-        } catch (InitException | IOException | ZipReadException | ZipEntryNotFoundException | ParserConfigurationException
-                | SAXException | InterruptedException e) {
-            throw new ExecuteException(e);
+    /**
+     * Print the summary of the report, and write the report if a path is given.
+     */
+    private static void finishReport(@NotNull RunReport report, @Nullable String path) {
+        report.printSummary(System.out);
+        if (path == null) {
+            return;
+        }
+        try {
+            report.writeJson(Paths.get(path));
+        } catch (IOException e) {
+            System.out.printf("Failed to write the report: %s%n", e.getMessage());
         }
     }
 
-    private String handleNCX(@NotNull InputStream is) throws ParserConfigurationException, IOException, SAXException {
-        org.w3c.dom.Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(is);
-        NodeList nodeList = document.getElementsByTagName("text");
-        for (int i = 0; i < nodeList.getLength(); ++i) {
-            org.w3c.dom.Element element = (org.w3c.dom.Element) nodeList.item(i);
-            org.w3c.dom.Element newElement = document.createElement("text");
-            newElement.setTextContent(variantConverter.convert(element.getTextContent()));
-            element.getParentNode().replaceChild(newElement, element);
-        }
-
-        // Following code refer <Core Java Volume Ⅱ--Advanced Features (10th Edition)>
-        // TODO: Run here for a long time, should consider performance issues
-        DOMImplementation impl = document.getImplementation();
-        DOMImplementationLS implLS = (DOMImplementationLS) impl.getFeature("LS", "3.0");
-        LSSerializer serializer = implLS.createLSSerializer();
-        serializer.getDomConfig().setParameter("format-pretty-print", true);
-        return serializer.writeToString(document);
+    @NotNull
+    private MemoryBudget getMemoryBudget() throws ExecuteException {
+        String memoryBudget = commandLine.getOptionValue("memoryBudget");
+        if (memoryBudget == null) {
+            return new MemoryBudget(Runtime.getRuntime().maxMemory() / 2);
+        }
+        try {
+            long megabytes = Long.parseLong(memoryBudget);
+            if (megabytes > 0) {
+                return new MemoryBudget(megabytes * 1024 * 1024);
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new ExecuteException("Invalid value of --memoryBudget: " + memoryBudget);
     }
 
-    private static class ConvertTask implements Runnable {
-        private EPUBBook.Manifest manifest;
-        private EPUBReader reader;
-        private VariantConverter variantConverter;
+    @Nullable
+    private ConversionCache getCache() throws ExecuteException {
+        String cache = commandLine.getOptionValue("cache");
+        if (cache == null) {
+            return null;
+        }
+        String cacheSize = commandLine.getOptionValue("cacheSize");
+        long maxMegabytes = 1024;
+        if (cacheSize != null) {
+            try {
+                maxMegabytes = Long.parseLong(cacheSize);
+            } catch (NumberFormatException e) {
+                maxMegabytes = -1;
+            }
+            if (maxMegabytes < 0) {
+                throw new ExecuteException("Invalid value of --cacheSize: " + cacheSize);
+            }
+        }
+        return new ConversionCache(Paths.get(cache), maxMegabytes * 1024 * 1024);
+    }
 
-        @Contract(pure = true)
-        private ConvertTask(@NotNull EPUBBook.Manifest manifest, @NotNull EPUBReader reader, @NotNull VariantConverter variantConverter) {
-            this.manifest = manifest;
-            this.reader = reader;
-            this.variantConverter = variantConverter;
+    @Nullable
+    private ScriptDetector getScriptDetector() throws ExecuteException {
+        String prescan = commandLine.getOptionValue("prescan");
+        if (prescan == null) {
+            return null;
+        }
+        try {
+            double percentage = Double.parseDouble(prescan);
+            if (percentage >= 0 && percentage <= 100) {
+                return new ScriptDetector(variantConverter, percentage / 100);
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new ExecuteException("Invalid value of --prescan: " + prescan);
+    }
+
+    @NotNull
+    private BookConverter.Rewriter getRewriter() throws ExecuteException {
+        String rewriter = commandLine.getOptionValue("rewriter");
+        if (rewriter == null) {
+            return BookConverter.Rewriter.STREAM;
+        }
+        switch (rewriter) {
+            case "stream":
+                return BookConverter.Rewriter.STREAM;
+            case "dom":
+                return BookConverter.Rewriter.DOM;
+            default:
+                throw new ExecuteException("Invalid value of --rewriter: " + rewriter);
         }
+    }
 
-        public void run() {
+    /**
+     * Start loading the converter on its own thread, outside of the thread budget since it mostly reads files.
+     */
+    @NotNull
+    private static CompletableFuture<VariantConverter> loadConverter(@Nullable String dict) {
+        CompletableFuture<VariantConverter> future = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
             try {
-                String text = reader.readManifest(manifest.getFilePath());
-                reader.writeManifest(manifest.getFilePath(), doConvert(text));
-            } catch (ZipEntryNotFoundException | ZipReadException | IOException e) {
-                throw new RuntimeException(e);
+                future.complete(newConverter(dict));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
             }
+        }, "converter-loader");
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    @NotNull
+    private static VariantConverter newConverter(@Nullable String dict) throws IOException {
+        if (dict == null) {
+            return VariantConverterFactory.newConverter();
+        }
+        List<Path> tables = new ArrayList<>();
+        for (String table : dict.split(",")) {
+            tables.add(Paths.get(table));
         }
+        return VariantConverterFactory.newTrieConverter(tables);
+    }
 
-        private String doConvert(@NotNull String text) {
-            Document document = Jsoup.parse(text);
-            Element div = document.body().getElementsByTag("div").get(0);
-            Elements pList = div.children();
+    /**
+     * Convert all books and print a line per book, a failed book does not stop the others.
+     */
+    private void convertBatch(@NotNull BookConverter bookConverter, @NotNull ForkJoinPool pool,
+                              @NotNull Map<Path, Path> books, @Nullable Path outputDir)
+            throws ExecuteException {
+        if (outputDir != null) {
+            // No book may be written outside of the output directory, whatever its relative path is
+            Path root = outputDir.toAbsolutePath().normalize();
+            for (Path relativePath : books.values()) {
+                if (!root.resolve(relativePath.toString()).normalize().startsWith(root)) {
+                    throw new ExecuteException(relativePath + " would be written outside of " + outputDir);
+                }
+            }
+        }
+        long startTime = System.nanoTime();
+        Map<Path, Future<BookResult>> results = new LinkedHashMap<>();
+        books.forEach((src, relativePath) -> results.put(relativePath, pool.submit(() -> {
+            long bookStartTime = System.nanoTime();
+            Path dst = null;
+            if (outputDir != null) {
+                dst = outputDir.resolve(relativePath.toString());
+                Files.createDirectories(dst.toAbsolutePath().getParent());
+            }
+            String skipReason = bookConverter.convert(src, dst);
+            return new BookResult((System.nanoTime() - bookStartTime) / 1_000_000, skipReason);
+        })));
 
-            pList.forEach(element -> {
-                if (!element.nodeName().equals("p")) {
-                    return;
+        int failed = 0;
+        int skipped = 0;
+        for (Map.Entry<Path, Future<BookResult>> entry : results.entrySet()) {
+            try {
+                BookResult result = entry.getValue().get();
+                if (result.skipReason != null) {
+                    ++skipped;
+                    System.out.printf("SKIPPED %s: %s%n", entry.getKey(), result.skipReason);
+                } else {
+                    System.out.printf("OK      %s (%d ms)%n", entry.getKey(), result.millis);
                 }
-                element.text(variantConverter.convert(element.text())); // Do zh-hant to zh-hans
-            });
+            } catch (ExecutionException e) {
+                ++failed;
+                System.out.printf("FAILED  %s: %s%n", entry.getKey(), describe(e.getCause()));
+            } catch (InterruptedException e) {
+                throw new ExecuteException(e);
+            }
+        }
+        System.out.printf("Converted %d books, %d skipped, %d failed, in %d ms%n", results.size() - skipped - failed,
+                skipped, failed, (System.nanoTime() - startTime) / 1_000_000);
+        if (failed != 0) {
+            throw new ExecuteException(failed + " of " + results.size() + " books failed");
+        }
+    }
+
+    /**
+     * Failures come wrapped by the pool and by the layers of the converter, report the root cause.
+     */
+    @NotNull
+    private static String describe(@NotNull Throwable throwable) {
+        while (throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        return throwable.getMessage() != null ? throwable.getMessage() : throwable.toString();
+    }
+
+    private static class BookResult {
+        private long millis;
+        @Nullable
+        private String skipReason;
 
-            return document.html();
+        @Contract(pure = true)
+        private BookResult(long millis, @Nullable String skipReason) {
+            this.millis = millis;
+            this.skipReason = skipReason;
         }
     }
 }
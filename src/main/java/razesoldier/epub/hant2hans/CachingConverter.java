@@ -0,0 +1,217 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.hant2hans;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A converter that remembers the results of another converter.
+ * <p>
+ * Books repeat the same short strings: headings, scene breaks, dialogue, names. The cache is bounded by the number
+ * of characters of its keys and values, and evicts the least recently used strings. It is split into segments with
+ * their own lock, so that chapters converted in parallel rarely wait for each other.
+ */
+public class CachingConverter implements VariantConverter {
+    private static final int SEGMENTS = 16;
+
+    private VariantConverter converter;
+    private ConvertibleChars convertibleChars;
+    private Segment[] segments = new Segment[SEGMENTS];
+    private int maxStringLength;
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+
+    /**
+     * @param converter The converter to cache
+     * @param maxChars The capacity of the cache, in characters of keys and values
+     */
+    @Contract(pure = true)
+    public CachingConverter(@NotNull VariantConverter converter, long maxChars) {
+        this.converter = converter;
+        convertibleChars = converter.convertibleChars();
+        for (int i = 0; i < SEGMENTS; ++i) {
+            segments[i] = new Segment(maxChars / SEGMENTS);
+        }
+        // A string that would fill a large part of a segment is not worth evicting everything else for
+        maxStringLength = (int) Math.min(Integer.MAX_VALUE, maxChars / SEGMENTS / 16);
+    }
+
+    public String convert(@NotNull String source) {
+        // Strings that can not change are neither converted nor cached
+        if (!convertibleChars.containsAny(source)) {
+            return source;
+        }
+        if (source.length() > maxStringLength) {
+            misses.increment();
+            return converter.convert(source);
+        }
+        Segment segment = segmentOf(source);
+        String result = segment.get(source);
+        if (result != null) {
+            hits.increment();
+            return result;
+        }
+        misses.increment();
+        // Converted outside of the lock, two threads may convert the same string, which is harmless
+        result = converter.convert(source);
+        segment.put(source, result);
+        return result;
+    }
+
+    /**
+     * The texts that are not cached are converted together by the converter.
+     */
+    @NotNull
+    public List<String> convertAll(@NotNull List<String> sources) {
+        List<String> results = new ArrayList<>(sources);
+        List<String> missed = new ArrayList<>();
+        int[] missedIndexes = new int[sources.size()];
+        for (int i = 0; i < sources.size(); ++i) {
+            String source = sources.get(i);
+            if (!convertibleChars.containsAny(source)) {
+                continue;
+            }
+            String result = source.length() > maxStringLength ? null : segmentOf(source).get(source);
+            if (result != null) {
+                hits.increment();
+                results.set(i, result);
+            } else {
+                misses.increment();
+                missedIndexes[missed.size()] = i;
+                missed.add(source);
+            }
+        }
+        if (missed.isEmpty()) {
+            return results;
+        }
+        List<String> converted = converter.convertAll(missed);
+        for (int k = 0; k < missed.size(); ++k) {
+            String source = missed.get(k);
+            String result = converted.get(k);
+            if (source.length() <= maxStringLength) {
+                segmentOf(source).put(source, result);
+            }
+            results.set(missedIndexes[k], result);
+        }
+        return results;
+    }
+
+    /**
+     * Ranges short enough to be cached go through the cache, longer ones are streamed by the converter.
+     */
+    public void convert(@NotNull CharSequence source, int start, int end, @NotNull Appendable out) throws IOException {
+        if (convertibleChars.indexIn(source, start, end) == -1) {
+            out.append(source, start, end);
+        } else if (end - start > maxStringLength) {
+            misses.increment();
+            converter.convert(source, start, end, out);
+        } else {
+            out.append(convert(source.subSequence(start, end).toString()));
+        }
+    }
+
+    @NotNull
+    public ConvertibleChars convertibleChars() {
+        return convertibleChars;
+    }
+
+    @NotNull
+    public String getVersion() {
+        return converter.getVersion();
+    }
+
+    public boolean isVersionKnown() {
+        return converter.isVersionKnown();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of characters of the keys and values in the cache
+     */
+    public long getCachedChars() {
+        long chars = 0;
+        for (Segment segment : segments) {
+            chars += segment.getChars();
+        }
+        return chars;
+    }
+
+    @NotNull
+    private Segment segmentOf(@NotNull String source) {
+        return segments[(source.hashCode() & 0x7FFFFFFF) % SEGMENTS];
+    }
+
+    private static class Segment {
+        private final long maxChars;
+        private long chars;
+        private final LinkedHashMap<String, String> map = new LinkedHashMap<>(16, 0.75f, true);
+
+        private Segment(long maxChars) {
+            this.maxChars = maxChars;
+        }
+
+        private synchronized String get(@NotNull String key) {
+            return map.get(key);
+        }
+
+        private synchronized void put(@NotNull String key, @NotNull String value) {
+            // An unchanged text is stored as its key, so that its chars are stored and counted once
+            if (value != key && value.equals(key)) {
+                value = key;
+            }
+            // The former entry is removed first, so that the map keeps this key, which the value may share
+            String old = map.remove(key);
+            if (old != null) {
+                chars -= old.equals(key) ? key.length() : key.length() + old.length();
+            }
+            map.put(key, value);
+            chars += charsOf(key, value);
+            Iterator<Map.Entry<String, String>> iterator = map.entrySet().iterator();
+            while (chars > maxChars && iterator.hasNext()) {
+                Map.Entry<String, String> eldest = iterator.next();
+                chars -= charsOf(eldest.getKey(), eldest.getValue());
+                iterator.remove();
+            }
+        }
+
+        @Contract(pure = true)
+        private static long charsOf(@NotNull String key, @NotNull String value) {
+            return value == key ? key.length() : key.length() + value.length();
+        }
+
+        private synchronized long getChars() {
+            return chars;
+        }
+    }
+}
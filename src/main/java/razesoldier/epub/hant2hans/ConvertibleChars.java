@@ -0,0 +1,130 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.hant2hans;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The set of chars that a {@link VariantConverter} may change, as a bitset of the BMP.
+ * <p>
+ * The set must include every char that can change in some context, not only alone: a phrase dictionary
+ * may change a char that is left as it is on its own. Surrogates stand for all supplementary characters.
+ * A string without any char of the set is returned unchanged by the converter.
+ */
+public class ConvertibleChars {
+    /**
+     * Every char may change, for converters that can not tell.
+     */
+    public static final ConvertibleChars ALL = new Builder().addRange('\u0000', '￿').build();
+
+    /**
+     * CJK ideographs, radicals and symbols, plus supplementary characters.
+     * A safe superset for converters between Chinese variants whose dictionary can not be inspected.
+     */
+    public static final ConvertibleChars HAN = new Builder()
+            .addRange('⺀', '⿟')
+            .addRange('　', '〿')
+            .addRange('㐀', '䶿')
+            .addRange('一', '鿿')
+            .addRange('\uD800', '\uDFFF')
+            .addRange('豈', '﫿')
+            .build();
+
+    private long[] bits;
+
+    @Contract(pure = true)
+    private ConvertibleChars(@NotNull long[] bits) {
+        this.bits = bits;
+    }
+
+    /**
+     * Create a set from its bitset, as returned by {@link #getBits()}.
+     */
+    @NotNull
+    static ConvertibleChars of(@NotNull long[] bits) {
+        if (bits.length != 1024) {
+            throw new IllegalArgumentException("The bitset must have 1024 longs");
+        }
+        return new ConvertibleChars(bits.clone());
+    }
+
+    @NotNull
+    long[] getBits() {
+        return bits.clone();
+    }
+
+    public boolean contains(char c) {
+        return (bits[c >>> 6] & (1L << c)) != 0;
+    }
+
+    /**
+     * @return The index of the first char of the set in text[start, end), or -1 if there is none
+     */
+    public int indexIn(@NotNull CharSequence text, int start, int end) {
+        long[] bits = this.bits;
+        for (int i = start; i < end; ++i) {
+            char c = text.charAt(i);
+            if ((bits[c >>> 6] & (1L << c)) != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Whether the converter may change the text
+     */
+    public boolean containsAny(@NotNull CharSequence text) {
+        return indexIn(text, 0, text.length()) != -1;
+    }
+
+    public static class Builder {
+        private long[] bits = new long[1024];
+
+        @NotNull
+        public Builder add(char c) {
+            bits[c >>> 6] |= 1L << c;
+            return this;
+        }
+
+        @NotNull
+        public Builder addRange(char first, char last) {
+            for (int c = first; c <= last; ++c) {
+                add((char) c);
+            }
+            return this;
+        }
+
+        /**
+         * Add all chars of the text, such as a dictionary key.
+         */
+        @NotNull
+        public Builder addAll(@NotNull CharSequence text) {
+            for (int i = 0; i < text.length(); ++i) {
+                add(text.charAt(i));
+            }
+            return this;
+        }
+
+        @NotNull
+        public ConvertibleChars build() {
+            return new ConvertibleChars(bits.clone());
+        }
+    }
+}
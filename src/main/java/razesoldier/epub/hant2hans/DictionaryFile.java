@@ -0,0 +1,235 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.hant2hans;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A compiled dictionary of {@link TrieConverter}, which is memory-mapped instead of parsed.
+ * <p>
+ * Layout, little-endian: the header (magic "EPDT", format version, trie size, value count, value chars,
+ * version chars), the bitset of {@link ConvertibleChars}, the base and check arrays of the trie,
+ * the value offsets, the version string, then the value chars. Every section stays aligned to its type.
+ * <p>
+ * The version string of the converter, which identifies the source tables, is kept. Since the file is mapped
+ * read-only, the processes that use the same file share its pages. Mapping a file checks the header and the
+ * bounds of the sections, which touches a few pages, so that a truncated file fails to load. The indexes stored
+ * in the trie are only checked by {@link #verify}, which reads the whole file and is done once after compiling;
+ * a file corrupted later fails the conversion that reaches the bad state.
+ */
+class DictionaryFile {
+    private static final int MAGIC = 0x54445045; // "EPDT" in little-endian
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int BITSET_LONGS = 1024;
+
+    private DictionaryFile() {
+    }
+
+    /**
+     * Compile the tables into a dictionary file, and {@link #verify} the written file.
+     *
+     * @return The compiled converter
+     */
+    @NotNull
+    static TrieConverter compile(@NotNull List<Path> tables, @NotNull Path output) throws IOException {
+        TrieConverter converter = TrieConverter.load(tables);
+        write(converter, output);
+        verify(output);
+        return converter;
+    }
+
+    static void write(@NotNull TrieConverter converter, @NotNull Path output) throws IOException {
+        String version = converter.getVersion();
+        DoubleArrayTrie trie = converter.getTrie();
+        CharBuffer values = converter.getValues();
+        IntBuffer valueOffsets = converter.getValueOffsets();
+        int size = trie.size();
+        long length = HEADER_SIZE + BITSET_LONGS * 8L + size * 8L + valueOffsets.remaining() * 4L
+                + version.length() * 2L + values.remaining() * 2L;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("The dictionary is too large");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(size).putInt(valueOffsets.remaining() - 1)
+                .putInt(values.remaining()).putInt(version.length());
+        for (long bits : converter.convertibleChars().getBits()) {
+            buffer.putLong(bits);
+        }
+        IntBuffer base = trie.getBase();
+        IntBuffer check = trie.getCheck();
+        for (int i = 0; i < size; ++i) {
+            buffer.putInt(base.get(i));
+        }
+        for (int i = 0; i < size; ++i) {
+            buffer.putInt(check.get(i));
+        }
+        while (valueOffsets.hasRemaining()) {
+            buffer.putInt(valueOffsets.get());
+        }
+        for (int i = 0; i < version.length(); ++i) {
+            buffer.putChar(version.charAt(i));
+        }
+        while (values.hasRemaining()) {
+            buffer.putChar(values.get());
+        }
+
+        // Written to a temporary file first, a process may be mapping the current one
+        Path tmp = Files.createTempFile(output.toAbsolutePath().getParent(), output.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(tmp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @return Whether the file starts with the magic of a dictionary file
+     */
+    static boolean isDictionaryFile(@NotNull Path path) throws IOException {
+        try (InputStream is = Files.newInputStream(path)) {
+            byte[] magic = is.readNBytes(4);
+            return magic.length == 4 && ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Map a dictionary file, the converter reads the file directly and nothing is copied to the heap
+     * but the bitset of convertible chars.
+     */
+    @NotNull
+    static TrieConverter map(@NotNull Path path) throws IOException {
+        return map(path, false);
+    }
+
+    /**
+     * Check every index stored in a dictionary file. It walks every state of the trie, so the whole file is read.
+     */
+    static void verify(@NotNull Path path) throws IOException {
+        map(path, true);
+    }
+
+    @NotNull
+    private static TrieConverter map(@NotNull Path path, boolean verify) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Corrupted dictionary file: " + path);
+            }
+            // The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a dictionary file: " + path);
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported dictionary format " + buffer.getInt(4) + ": " + path);
+        }
+        int size = buffer.getInt(8);
+        int valueCount = buffer.getInt(12);
+        int valueChars = buffer.getInt(16);
+        int versionChars = buffer.getInt(20);
+        // The sections must fill the file exactly
+        long length = HEADER_SIZE + BITSET_LONGS * 8L + size * 8L + (valueCount + 1) * 4L + versionChars * 2L
+                + valueChars * 2L;
+        if (size <= 0 || valueCount < 0 || valueChars < 0 || versionChars < 0 || length != buffer.limit()) {
+            throw new IOException("Corrupted dictionary file: " + path);
+        }
+
+        int position = HEADER_SIZE;
+        long[] bits = new long[BITSET_LONGS];
+        slice(buffer, position, BITSET_LONGS * 8).asLongBuffer().get(bits);
+        position += BITSET_LONGS * 8;
+        IntBuffer base = slice(buffer, position, size * 4).asIntBuffer();
+        position += size * 4;
+        IntBuffer check = slice(buffer, position, size * 4).asIntBuffer();
+        position += size * 4;
+        IntBuffer valueOffsets = slice(buffer, position, (valueCount + 1) * 4).asIntBuffer();
+        position += (valueCount + 1) * 4;
+        String version = slice(buffer, position, versionChars * 2).asCharBuffer().toString();
+        position += versionChars * 2;
+        CharBuffer values = slice(buffer, position, valueChars * 2).asCharBuffer();
+        // The root and the ends of the value offsets, which a lookup starts from
+        if (base.get(0) < 0 || base.get(0) >= size || valueOffsets.get(0) != 0
+                || valueOffsets.get(valueCount) != valueChars) {
+            throw new IOException("Corrupted dictionary file: " + path);
+        }
+        if (verify) {
+            validate(base, check, valueOffsets, valueCount, valueChars, path);
+        }
+
+        return new TrieConverter(new DoubleArrayTrie(base, check), values, valueOffsets, ConvertibleChars.of(bits),
+                version);
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull ByteBuffer buffer, int position, int length) {
+        return buffer.duplicate().position(position).limit(position + length).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Check that every index stored in the arrays stays inside them.
+     */
+    private static void validate(@NotNull IntBuffer base, @NotNull IntBuffer check, @NotNull IntBuffer valueOffsets,
+                                 int valueCount, int valueChars, @NotNull Path path) throws IOException {
+        int size = check.limit();
+        for (int state = 1; state < size; ++state) {
+            if (check.get(state) == 0) {
+                continue;
+            }
+            int parent = check.get(state) - 1;
+            if (parent < 0 || parent >= size) {
+                throw new IOException("Corrupted dictionary file: " + path);
+            }
+            // A terminal state holds a value index, the others the base of their children
+            boolean terminal = base.get(parent) == state;
+            int value = base.get(state);
+            if (terminal ? value >= 0 || value < -valueCount : value < 0 || value >= size) {
+                throw new IOException("Corrupted dictionary file: " + path);
+            }
+        }
+        int previous = 0;
+        for (int i = 0; i <= valueCount; ++i) {
+            int offset = valueOffsets.get(i);
+            if (offset < previous || offset > valueChars) {
+                throw new IOException("Corrupted dictionary file: " + path);
+            }
+            previous = offset;
+        }
+    }
+}
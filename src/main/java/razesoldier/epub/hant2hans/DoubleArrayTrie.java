@@ -0,0 +1,203 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.hant2hans;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A double-array trie of strings, for longest-match lookups without allocation.
+ * <p>
+ * A state s has the children t = base[s] + code, with check[t] == s + 1. The code of a char is the char plus one,
+ * the code 0 marks the end of a key: its state holds -(value index + 1) in base.
+ * The arrays are buffers, so that a trie can be used directly from a mapped dictionary file.
+ */
+class DoubleArrayTrie {
+    private static final int NO_MATCH = -1;
+
+    private IntBuffer base;
+    private IntBuffer check;
+    private int size;
+
+    @Contract(pure = true)
+    DoubleArrayTrie(@NotNull IntBuffer base, @NotNull IntBuffer check) {
+        this.base = base;
+        this.check = check;
+        size = check.limit();
+    }
+
+    /**
+     * Build a trie, the value index of a key is its index in the list.
+     *
+     * @param keys Distinct non-empty keys, sorted in natural order
+     */
+    @NotNull
+    static DoubleArrayTrie build(@NotNull List<String> keys) {
+        Builder builder = new Builder(keys);
+        builder.build(0, 0, keys.size(), 0);
+        return new DoubleArrayTrie(IntBuffer.wrap(Arrays.copyOf(builder.base, builder.size)),
+                IntBuffer.wrap(Arrays.copyOf(builder.check, builder.size)));
+    }
+
+    /**
+     * Find the longest key that starts at text[start] and ends before end.
+     *
+     * @return -1 if no key matches, otherwise the length of the key in the upper 32 bits and its value index
+     * in the lower 32 bits
+     */
+    long match(@NotNull CharSequence text, int start, int end) {
+        IntBuffer base = this.base;
+        IntBuffer check = this.check;
+        int size = this.size;
+        long result = NO_MATCH;
+        int state = 0;
+        for (int i = start; ; ++i) {
+            int terminal = base.get(state);
+            if (terminal < size && check.get(terminal) == state + 1) {
+                result = ((long) (i - start) << 32) | (-base.get(terminal) - 1);
+            }
+            if (i == end) {
+                return result;
+            }
+            int next = terminal + text.charAt(i) + 1;
+            if (next >= size || check.get(next) != state + 1) {
+                return result;
+            }
+            state = next;
+        }
+    }
+
+    /**
+     * @return The number of states, the length of both arrays
+     */
+    int size() {
+        return size;
+    }
+
+    @NotNull
+    IntBuffer getBase() {
+        return base.duplicate();
+    }
+
+    @NotNull
+    IntBuffer getCheck() {
+        return check.duplicate();
+    }
+
+    private static class Builder {
+        private List<String> keys;
+        private int[] base = new int[1 << 17];
+        private int[] check = new int[1 << 17];
+        private int[] codes = new int[16];
+        private int nextCheckPos = 1;
+        private int size = 1;
+
+        private Builder(@NotNull List<String> keys) {
+            this.keys = keys;
+        }
+
+        /**
+         * Place the children of a state, whose keys are keys[lo, hi) and share their first depth chars.
+         */
+        private void build(int state, int lo, int hi, int depth) {
+            // Distinct codes of the children, in ascending order since the keys are sorted
+            int count = 0;
+            for (int i = lo; i < hi; ++i) {
+                int code = code(keys.get(i), depth);
+                if (count == 0 || codes[count - 1] != code) {
+                    if (count == codes.length) {
+                        codes = Arrays.copyOf(codes, count * 2);
+                    }
+                    codes[count++] = code;
+                }
+            }
+            int[] children = Arrays.copyOf(codes, count);
+
+            int b = findBase(children);
+            base[state] = b;
+            for (int code : children) {
+                check[b + code] = state + 1;
+            }
+            size = Math.max(size, b + children[children.length - 1] + 1);
+
+            int groupStart = lo;
+            for (int i = lo + 1; i <= hi; ++i) {
+                if (i == hi || code(keys.get(i), depth) != code(keys.get(groupStart), depth)) {
+                    int code = code(keys.get(groupStart), depth);
+                    if (code == 0) {
+                        base[b] = -groupStart - 1;
+                    } else {
+                        build(b + code, groupStart, i, depth + 1);
+                    }
+                    groupStart = i;
+                }
+            }
+        }
+
+        private int findBase(@NotNull int[] children) {
+            int first = children[0];
+            int pos = Math.max(nextCheckPos, first + 1) - 1;
+            int occupied = 0;
+            boolean firstFree = true;
+            while (true) {
+                ++pos;
+                ensureCapacity(pos + 1);
+                if (check[pos] != 0) {
+                    ++occupied;
+                    continue;
+                }
+                if (firstFree) {
+                    nextCheckPos = pos;
+                    firstFree = false;
+                }
+                int b = pos - first;
+                ensureCapacity(b + children[children.length - 1] + 1);
+                boolean fits = true;
+                for (int code : children) {
+                    if (check[b + code] != 0 || (b + code == 0)) {
+                        fits = false;
+                        break;
+                    }
+                }
+                if (fits) {
+                    // Skip the dense area at the start in the next searches
+                    if ((double) occupied / (pos - nextCheckPos + 1) >= 0.95) {
+                        nextCheckPos = pos;
+                    }
+                    return b;
+                }
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > check.length) {
+                int newLength = Math.max(capacity, check.length * 2);
+                base = Arrays.copyOf(base, newLength);
+                check = Arrays.copyOf(check, newLength);
+            }
+        }
+
+        private static int code(@NotNull String key, int depth) {
+            return key.length() == depth ? 0 : key.charAt(depth) + 1;
+        }
+    }
+}
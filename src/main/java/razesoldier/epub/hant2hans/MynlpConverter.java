@@ -23,10 +23,18 @@ import com.mayabot.nlp.transform.Traditional2Simplified;
 import com.mayabot.nlp.transform.TransformService;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * This implementation use com.mayabot.mynlp:mynlp-transform library.
  */
 class MynlpConverter implements VariantConverter {
+    /**
+     * Separates the texts of {@link #convertAll(List)}, no dictionary entry contains it.
+     */
+    private static final char SEPARATOR = '\u0000';
+
     private Traditional2Simplified converter;
 
     MynlpConverter() {
@@ -35,6 +43,83 @@ class MynlpConverter implements VariantConverter {
     }
 
     public String convert(@NotNull String source) {
-        return converter.transform(source);
+        if (!ConvertibleChars.HAN.containsAny(source)) {
+            return source;
+        }
+        String result = converter.transform(source);
+        return result.equals(source) ? source : result;
+    }
+
+    /**
+     * The dictionary comes with the mynlp library, so its version is the one of the library.
+     */
+    @NotNull
+    public String getVersion() {
+        String version = Traditional2Simplified.class.getPackage().getImplementationVersion();
+        return "mynlp:" + (version != null ? version : "unknown");
+    }
+
+    /**
+     * The version of the library is not known when it is not packaged in a jar with a manifest.
+     */
+    public boolean isVersionKnown() {
+        return Traditional2Simplified.class.getPackage().getImplementationVersion() != null;
+    }
+
+    /**
+     * Each call of mynlp has a noticeable setup cost, which is large compared to a short paragraph.
+     * So the texts that may change are joined with {@link #SEPARATOR}, converted at once and split again.
+     * Phrases can not match across the separator, so each text is converted as if it was alone.
+     */
+    @NotNull
+    public List<String> convertAll(@NotNull List<String> sources) {
+        List<String> results = new ArrayList<>(sources);
+        int[] indexes = new int[sources.size()];
+        int count = 0;
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < sources.size(); ++i) {
+            String source = sources.get(i);
+            if (!ConvertibleChars.HAN.containsAny(source)) {
+                continue;
+            }
+            if (source.indexOf(SEPARATOR) != -1) {
+                results.set(i, convert(source));
+                continue;
+            }
+            if (count != 0) {
+                joined.append(SEPARATOR);
+            }
+            joined.append(source);
+            indexes[count++] = i;
+        }
+        if (count == 0) {
+            return results;
+        }
+
+        String converted = converter.transform(joined.toString());
+        List<String> parts = new ArrayList<>(count);
+        int partStart = 0;
+        for (int i = 0; i < converted.length(); ++i) {
+            if (converted.charAt(i) == SEPARATOR) {
+                parts.add(converted.substring(partStart, i));
+                partStart = i + 1;
+            }
+        }
+        parts.add(converted.substring(partStart));
+        for (int k = 0; k < count; ++k) {
+            String source = sources.get(indexes[k]);
+            // Should not happen, but if the separators were not kept the texts are converted one by one
+            String result = parts.size() == count ? parts.get(k) : converter.transform(source);
+            results.set(indexes[k], result.equals(source) ? source : result);
+        }
+        return results;
+    }
+
+    /**
+     * The dictionaries of mynlp can not be inspected, so all Han characters are considered convertible.
+     */
+    @NotNull
+    public ConvertibleChars convertibleChars() {
+        return ConvertibleChars.HAN;
     }
 }
@@ -0,0 +1,262 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.hant2hans;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A built-in converter that replaces the longest phrase of its dictionary at each position, from left to right.
+ * <p>
+ * The dictionary is made of tables in the format of OpenCC, such as TSPhrases.txt and TSCharacters.txt:
+ * one entry per line, the key, a tab, then the candidates separated by spaces, of which the first one is used.
+ * Phrase tables and character tables can be mixed, the longest match gives phrases the priority.
+ */
+class TrieConverter implements VariantConverter {
+    private DoubleArrayTrie trie;
+    private CharBuffer values;
+    private IntBuffer valueOffsets;
+    private ConvertibleChars convertibleChars;
+    private String version;
+
+    /**
+     * @param values The values of all keys, one after another
+     * @param valueOffsets The start of each value in values, plus the end of the last one
+     * @param version Identifies the dictionary
+     */
+    @Contract(pure = true)
+    TrieConverter(@NotNull DoubleArrayTrie trie, @NotNull CharBuffer values, @NotNull IntBuffer valueOffsets,
+                  @NotNull ConvertibleChars convertibleChars, @NotNull String version) {
+        this.trie = trie;
+        this.values = values;
+        this.valueOffsets = valueOffsets;
+        this.convertibleChars = convertibleChars;
+        this.version = version;
+    }
+
+    /**
+     * Build a converter from the given tables, a key in a later table replaces the same key in a former one.
+     * The version of the converter is a SHA-256 digest of the tables.
+     */
+    @NotNull
+    static TrieConverter load(@NotNull List<Path> tables) throws IOException {
+        Map<String, String> dictionary = new TreeMap<>();
+        MessageDigest digest = newDigest();
+        for (Path table : tables) {
+            byte[] bytes = Files.readAllBytes(table);
+            digest.update(bytes);
+            try (BufferedReader reader = new BufferedReader(new StringReader(new String(bytes, StandardCharsets.UTF_8)))) {
+                readTable(reader, dictionary);
+            }
+        }
+        StringBuilder version = new StringBuilder("sha256:");
+        for (byte b : digest.digest()) {
+            version.append(String.format("%02x", b));
+        }
+        return build(dictionary, version.toString());
+    }
+
+    /**
+     * Read a table in the format of OpenCC into dictionary, blank lines and lines starting with '#' are ignored.
+     */
+    static void readTable(@NotNull BufferedReader reader, @NotNull Map<String, String> dictionary) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            int tab = line.indexOf('\t');
+            if (tab <= 0) {
+                throw new IOException("Invalid dictionary entry: " + line);
+            }
+            String candidates = line.substring(tab + 1).strip();
+            int space = candidates.indexOf(' ');
+            dictionary.put(line.substring(0, tab), space == -1 ? candidates : candidates.substring(0, space));
+        }
+    }
+
+    /**
+     * @param dictionary A map from traditional to simplified text, sorted by key
+     * @param version Identifies the dictionary
+     */
+    @NotNull
+    static TrieConverter build(@NotNull Map<String, String> dictionary, @NotNull String version) {
+        List<String> keys = new ArrayList<>(dictionary.size());
+        StringBuilder values = new StringBuilder();
+        int[] valueOffsets = new int[dictionary.size() + 1];
+        // Only keys that change can change a text, keys mapped to themselves just block shorter matches
+        ConvertibleChars.Builder convertibleChars = new ConvertibleChars.Builder();
+        for (Map.Entry<String, String> entry : dictionary.entrySet()) {
+            valueOffsets[keys.size()] = values.length();
+            values.append(entry.getValue());
+            keys.add(entry.getKey());
+            if (!entry.getKey().equals(entry.getValue())) {
+                convertibleChars.addAll(entry.getKey());
+            }
+        }
+        valueOffsets[keys.size()] = values.length();
+        return new TrieConverter(DoubleArrayTrie.build(keys), CharBuffer.wrap(values.toString()),
+                IntBuffer.wrap(valueOffsets), convertibleChars.build(), version);
+    }
+
+    public String convert(@NotNull String source) {
+        return convert(source, null);
+    }
+
+    /**
+     * Convert all texts with one buffer.
+     */
+    @NotNull
+    public List<String> convertAll(@NotNull List<String> sources) {
+        List<String> results = new ArrayList<>(sources.size());
+        StringBuilder buffer = new StringBuilder();
+        for (String source : sources) {
+            results.add(convert(source, buffer));
+        }
+        return results;
+    }
+
+    /**
+     * @param buffer A buffer to reuse, or null to create one if the text changes
+     */
+    @NotNull
+    private String convert(@NotNull String source, @Nullable StringBuilder buffer) {
+        if (!convertibleChars.containsAny(source)) {
+            return source;
+        }
+        int length = source.length();
+        // Used from the first replacement that changes the text
+        StringBuilder builder = null;
+        int copied = 0;
+        for (int i = 0; i < length; ) {
+            long match = trie.match(source, i, length);
+            if (match == -1) {
+                ++i;
+                continue;
+            }
+            int matchLength = (int) (match >>> 32);
+            int valueStart = valueOffsets.get((int) match);
+            int valueEnd = valueOffsets.get((int) match + 1);
+            if (!regionEquals(source, i, matchLength, valueStart, valueEnd)) {
+                if (builder == null) {
+                    builder = buffer != null ? buffer : new StringBuilder(length);
+                    builder.setLength(0);
+                }
+                builder.append(source, copied, i).append(values, valueStart, valueEnd);
+                copied = i + matchLength;
+            }
+            i += matchLength;
+        }
+        return builder == null ? source : builder.append(source, copied, length).toString();
+    }
+
+    public void convert(@NotNull CharSequence source, int start, int end, @NotNull Appendable out) throws IOException {
+        int copied = start;
+        for (int i = start; i < end; ) {
+            long match = trie.match(source, i, end);
+            if (match == -1) {
+                ++i;
+                continue;
+            }
+            int matchLength = (int) (match >>> 32);
+            int valueStart = valueOffsets.get((int) match);
+            int valueEnd = valueOffsets.get((int) match + 1);
+            if (!regionEquals(source, i, matchLength, valueStart, valueEnd)) {
+                out.append(source, copied, i).append(values, valueStart, valueEnd);
+                copied = i + matchLength;
+            }
+            i += matchLength;
+        }
+        out.append(source, copied, end);
+    }
+
+    @NotNull
+    public ConvertibleChars convertibleChars() {
+        return convertibleChars;
+    }
+
+    /**
+     * @return Identifies the dictionary, converters with the same version convert the same way
+     */
+    @NotNull
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * The version is the digest of the tables or given by the caller.
+     */
+    public boolean isVersionKnown() {
+        return true;
+    }
+
+    @NotNull
+    DoubleArrayTrie getTrie() {
+        return trie;
+    }
+
+    @NotNull
+    CharBuffer getValues() {
+        return values.duplicate();
+    }
+
+    @NotNull
+    IntBuffer getValueOffsets() {
+        return valueOffsets.duplicate();
+    }
+
+    /**
+     * @return Whether the matched text is the same as the value, a key mapped to itself
+     */
+    private boolean regionEquals(@NotNull CharSequence source, int start, int length, int valueStart, int valueEnd) {
+        if (valueEnd - valueStart != length) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (source.charAt(start + i) != values.get(valueStart + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NotNull
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -19,6 +19,68 @@ package razesoldier.epub.hant2hans;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 public interface VariantConverter {
+    /**
+     * @return The converted text, or source itself if nothing was changed
+     */
     String convert(@NotNull String source);
+
+    /**
+     * Convert source[start, end) and append the result to out, without creating Strings when the converter
+     * supports it. The range is converted on its own, as if it was a String. The default implementation appends
+     * the range as it is if it has no convertible chars, and otherwise converts it with {@link #convert(String)}.
+     *
+     * @throws IOException If out throws it
+     */
+    default void convert(@NotNull CharSequence source, int start, int end, @NotNull Appendable out) throws IOException {
+        if (convertibleChars().indexIn(source, start, end) == -1) {
+            out.append(source, start, end);
+            return;
+        }
+        out.append(convert(source.subSequence(start, end).toString()));
+    }
+
+    /**
+     * Convert many texts at once, such as all paragraphs of a chapter, which lets a converter share its setup
+     * and buffers between them. Each text is converted on its own.
+     *
+     * @return The converted texts, in the order of sources, an unchanged text may be the source itself
+     */
+    @NotNull
+    default List<String> convertAll(@NotNull List<String> sources) {
+        List<String> results = new ArrayList<>(sources.size());
+        for (String source : sources) {
+            results.add(convert(source));
+        }
+        return results;
+    }
+
+    /**
+     * @return The chars that this converter may change, {@link ConvertibleChars#ALL} if it can not tell
+     */
+    @NotNull
+    default ConvertibleChars convertibleChars() {
+        return ConvertibleChars.ALL;
+    }
+
+    /**
+     * @return Identifies the converter and its dictionary, converters with the same version convert the same way.
+     * A result kept across runs is valid as long as the version does not change.
+     */
+    @NotNull
+    default String getVersion() {
+        return getClass().getName();
+    }
+
+    /**
+     * @return Whether {@link #getVersion()} changes with the dictionary. Results of a converter whose version
+     * is not known must not be kept across runs, the dictionary could change without the version.
+     */
+    default boolean isVersionKnown() {
+        return false;
+    }
 }
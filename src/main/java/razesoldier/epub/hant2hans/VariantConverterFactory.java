@@ -20,10 +20,59 @@ package razesoldier.epub.hant2hans;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
 public class VariantConverterFactory {
+    /**
+     * The default capacity of the cache of {@link #newConverter()}, in characters.
+     */
+    public static final long DEFAULT_CACHE_CHARS = 4L * 1024 * 1024;
+
+    /**
+     * @return The default converter, with a cache of {@link #DEFAULT_CACHE_CHARS} characters
+     */
     @NotNull
     @Contract(value = " -> new", pure = true)
     public static VariantConverter newConverter() {
-        return new MynlpConverter();
+        return withCache(new MynlpConverter(), DEFAULT_CACHE_CHARS);
+    }
+
+    /**
+     * Create the built-in longest-match converter, with a cache of {@link #DEFAULT_CACHE_CHARS} characters.
+     *
+     * @param tables Dictionary tables in the format of OpenCC, such as TSPhrases.txt and TSCharacters.txt,
+     *               or a single dictionary compiled by {@link #compileDictionary(List, Path)}, which is mapped
+     *               into memory instead of being parsed
+     * @throws IOException If a table can not be read or is invalid
+     */
+    @NotNull
+    public static VariantConverter newTrieConverter(@NotNull List<Path> tables) throws IOException {
+        if (tables.size() == 1 && DictionaryFile.isDictionaryFile(tables.get(0))) {
+            return withCache(DictionaryFile.map(tables.get(0)), DEFAULT_CACHE_CHARS);
+        }
+        return withCache(TrieConverter.load(tables), DEFAULT_CACHE_CHARS);
+    }
+
+    /**
+     * Compile dictionary tables into a binary file for {@link #newTrieConverter(List)}.
+     *
+     * @return The version of the dictionary, a digest of the tables
+     */
+    @NotNull
+    public static String compileDictionary(@NotNull List<Path> tables, @NotNull Path output) throws IOException {
+        return DictionaryFile.compile(tables, output).getVersion();
+    }
+
+    /**
+     * Wrap a converter with a {@link CachingConverter}.
+     *
+     * @param maxChars The capacity of the cache, in characters of keys and values
+     */
+    @NotNull
+    @Contract(value = "_, _ -> new", pure = true)
+    public static CachingConverter withCache(@NotNull VariantConverter converter, long maxChars) {
+        return new CachingConverter(converter, maxChars);
     }
 }
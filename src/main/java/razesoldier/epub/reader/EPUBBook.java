@@ -24,18 +24,30 @@ import org.jetbrains.annotations.Nullable;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * A book opened by {@link EPUBReader}.
+ * If the reader was opened with {@link EPUBReader.OpenMode#LAZY}, only the metadata is available at first,
+ * manifests and spines are parsed on the first call of {@link #getManifests()} or {@link #getSpines()},
+ * and the NCX on the first call of {@link #getNcx()}. That needs the reader to be still open,
+ * a failure is thrown as {@link BookLoadException}.
+ */
 public class EPUBBook {
     private String bookName;
     private String lang;
     private Map<String, String> metadata;
-    private Map<String, Manifest> manifests;
-    private Spines spines;
-    private NCX ncx;
+    private volatile Map<String, Manifest> manifests;
+    private volatile Spines spines;
+    private volatile NCX ncx;
+    private Loader loader;
 
     @Contract(pure = true)
     EPUBBook() {
     }
 
+    void setLoader(@NotNull Loader loader) {
+        this.loader = loader;
+    }
+
     void setMetadata(@NotNull String bookName, @NotNull String lang, @NotNull Map<String, String> metadata) {
         this.bookName = bookName;
         this.lang = lang;
@@ -76,19 +88,59 @@ public class EPUBBook {
      */
     @NotNull
     public Map<String, Manifest> getManifests() {
+        if (manifests == null) {
+            loadManifests();
+        }
         return manifests;
     }
 
     @NotNull
     public Spines getSpines() {
+        if (spines == null) {
+            loadManifests();
+        }
         return spines;
     }
 
     @NotNull
     public NCX getNcx() {
+        if (ncx == null) {
+            loadNcx();
+        }
         return ncx;
     }
 
+    private synchronized void loadManifests() {
+        if (manifests != null) {
+            return;
+        }
+        try {
+            loader.loadManifests(this);
+        } catch (InitException e) {
+            throw new BookLoadException(e);
+        }
+    }
+
+    private synchronized void loadNcx() {
+        if (ncx != null) {
+            return;
+        }
+        try {
+            loader.loadNcx(this);
+        } catch (InitException e) {
+            throw new BookLoadException(e);
+        }
+    }
+
+    /**
+     * Loads the parts of a book that were not parsed when it was opened.
+     */
+    interface Loader {
+        void loadManifests(@NotNull EPUBBook book) throws InitException;
+
+        void loadNcx(@NotNull EPUBBook book) throws InitException;
+    }
+
     public static class Manifest {
         private String id;
         private String filePath;
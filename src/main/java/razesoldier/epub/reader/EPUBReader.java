@@ -19,35 +19,56 @@ package razesoldier.epub.reader;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.w3c.dom.Document;
-import org.xml.sax.SAXException;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import java.io.*;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.FileSystem;
-import java.nio.file.*;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * Used to read a EPUB file.
+ * The central directory is indexed once when the file is opened, see {@link #getIndex()},
+ * all reads are served from that index.
  */
 public class EPUBReader implements Closeable {
     private EPUBBook epubBook;
     private String resourcePath;
-    private FileSystem fileSystem;
+    private FileChannel channel;
+    private ZipIndex index;
+    private String opfPath;
 
     public EPUBReader(@NotNull String path) throws InitException {
+        this(path, OpenMode.EAGER);
+    }
+
+    public EPUBReader(@NotNull String path, @NotNull OpenMode mode) throws InitException {
         try {
-            fileSystem = FileSystems.newFileSystem(Paths.get(new File(path).toURI()), (ClassLoader) null);
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+            index = ZipIndex.read(channel);
         } catch (IOException e) {
+            closeQuietly();
             throw new InitException(e);
         }
-        String checkResult = checkZipFile();
-        if (checkResult != null) {
-            throw new InitException(checkResult);
+        try {
+            String checkResult = checkZipFile();
+            if (checkResult != null) {
+                throw new InitException(checkResult);
+            }
+            initBook(mode);
+        } catch (InitException e) {
+            closeQuietly();
+            throw e;
         }
-        initBook();
     }
 
     /**
@@ -76,58 +97,99 @@ public class EPUBReader implements Closeable {
     /**
      * Initialize the EPUBBook instance.
      */
-    private void initBook() throws InitException {
-        InputStream containerStream;
-        try {
-            containerStream = readFileWithStream("META-INF/container.xml");
-        } catch (ZipReadException | ZipEntryNotFoundException e) {
+    private void initBook(@NotNull OpenMode mode) throws InitException {
+        try (InputStream containerStream = readFileWithStream("META-INF/container.xml")) {
+            opfPath = readOPFPath(containerStream);
+        } catch (ZipReadException | ZipEntryNotFoundException | IOException | XMLStreamException e) {
             throw new InitException(e);
         }
 
-        Document document;
-        try {
-            document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(containerStream);
-        } catch (ParserConfigurationException | IOException | SAXException e) {
-            throw new InitException(e);
+        if (mode == OpenMode.LAZY) {
+            try (InputStream opfStream = readFileWithStream(opfPath)) {
+                OPFParser opfParser = new OPFParser(opfStream, opfPath);
+                epubBook = opfParser.parseMetadata();
+                resourcePath = opfParser.getResourcePath();
+            } catch (IOException | XMLStreamException | ZipReadException | ZipEntryNotFoundException e) {
+                throw new InitException(e);
+            }
+            epubBook.setLoader(new LazyLoader());
+            return;
         }
-        // Get OPF file path from the container file
-        String opfPath = document.getElementsByTagName("rootfile").item(0).getAttributes().
-                getNamedItem("full-path").getTextContent();
-        try {
-            OPFParser opfParser = new OPFParser(readFileWithStream(opfPath), opfPath);
-            epubBook = opfParser.parse();
+
+        epubBook = parseOPF();
+        epubBook.setNcx(parseNCX(epubBook.getSpines().getSpineFilePath()));
+    }
+
+    @NotNull
+    private EPUBBook parseOPF() throws InitException {
+        try (InputStream opfStream = readFileWithStream(opfPath)) {
+            OPFParser opfParser = new OPFParser(opfStream, opfPath);
             resourcePath = opfParser.getResourcePath();
-        } catch (ParserConfigurationException | IOException | SAXException | ZipReadException | ZipEntryNotFoundException e) {
+            return opfParser.parse();
+        } catch (IOException | XMLStreamException | ZipReadException | ZipEntryNotFoundException e) {
             throw new InitException(e);
         }
+    }
 
-        // Handle .ncx file
-        NCXParser ncxParser;
-        try {
-            ncxParser = new NCXParser(readFileWithStream(epubBook.getSpines().getSpineFilePath()));
-        } catch (ParserConfigurationException | ZipEntryNotFoundException | SAXException | ZipReadException e) {
+    @NotNull
+    private EPUBBook.NCX parseNCX(@NotNull String ncxPath) throws InitException {
+        try (InputStream ncxStream = readFileWithStream(ncxPath)) {
+            return new NCXParser(ncxStream).parse();
+        } catch (IOException | XMLStreamException | ZipEntryNotFoundException | ZipReadException e) {
             throw new InitException(e);
         }
-        epubBook.setNcx(ncxParser.parse());
     }
 
+    /**
+     * Get OPF file path from the container file.
+     */
+    @NotNull
+    private static String readOPFPath(@NotNull InputStream containerStream) throws XMLStreamException {
+        XMLStreamReader reader = XMLStreams.newReader(containerStream);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("rootfile")) {
+                    String fullPath = reader.getAttributeValue(null, "full-path");
+                    if (fullPath != null) {
+                        return fullPath;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        throw new XMLStreamException("rootfile not found in META-INF/container.xml");
+    }
 
     private boolean entryNoExists(@NotNull String entry) {
-        Path path = fileSystem.getPath(entry);
-        return !Files.exists(path);
+        return getEntry(entry) == null;
     }
 
     public EPUBBook getBook() {
         return epubBook;
     }
 
-    private String readFile(@NotNull String entry) throws ZipReadException, ZipEntryNotFoundException {
-        if (entryNoExists(entry)) {
-            throw new ZipEntryNotFoundException(entry);
-        }
-        Path path = fileSystem.getPath(entry);
-        try {
-            return Files.readString(path);
+    /**
+     * Get the index of all entries in this EPUB file.
+     */
+    @NotNull
+    public ZipIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Look up an entry in the index.
+     *
+     * @param filepath The path of the entry, a leading slash and "." or ".." segments are allowed
+     */
+    @Nullable
+    public ZipIndex.Entry getEntry(@NotNull String filepath) {
+        return index.getEntry(getEntryName(filepath));
+    }
+
+    public String readFile(@NotNull String entry) throws ZipReadException, ZipEntryNotFoundException {
+        try (InputStream is = readFileWithStream(entry)) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
         } catch (IOException e) {
             throw new ZipReadException(e);
         }
@@ -135,12 +197,12 @@ public class EPUBReader implements Closeable {
 
     @NotNull
     public InputStream readFileWithStream(@NotNull String filepath) throws ZipReadException, ZipEntryNotFoundException {
-        if (entryNoExists(filepath)) {
+        ZipIndex.Entry entry = getEntry(filepath);
+        if (entry == null) {
             throw new ZipEntryNotFoundException(filepath);
         }
-        Path path = fileSystem.getPath(filepath);
         try {
-            return Files.newInputStream(path);
+            return EntryInputStream.open(channel, entry);
         } catch (IOException e) {
             throw new ZipReadException(e);
         }
@@ -150,19 +212,93 @@ public class EPUBReader implements Closeable {
         return readFile(resourcePath + "/" + filepath);
     }
 
-    public void writeFile(@NotNull String dstPath, @NotNull String newText) throws IOException {
-        Path path = fileSystem.getPath(dstPath);
-        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
-            writer.write(newText);
-            writer.flush();
+    /**
+     * Get the name of the zip entry that a manifest refers to.
+     *
+     * @param filepath The href of a manifest, relative to the OPF file
+     * @return The entry name, without leading slash
+     */
+    @NotNull
+    public String getManifestEntryName(@NotNull String filepath) {
+        return getEntryName(resourcePath + "/" + filepath);
+    }
+
+    /**
+     * Get the normalized name of a zip entry, such as the one returned by {@link EPUBBook.Spines#getSpineFilePath()}.
+     *
+     * @return The entry name, without leading slash
+     */
+    @NotNull
+    public String getEntryName(@NotNull String filepath) {
+        if (!filepath.startsWith("/") && !filepath.contains("//") && !filepath.contains("./")) {
+            return filepath;
+        }
+        Deque<String> segments = new ArrayDeque<>();
+        for (String segment : filepath.split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            }
+            if (segment.equals("..")) {
+                segments.pollLast();
+            } else {
+                segments.addLast(segment);
+            }
+        }
+        return String.join("/", segments);
+    }
+
+    /**
+     * Get the names of all file entries in this EPUB file, in central directory order.
+     *
+     * @return A list of entry names, without leading slash
+     */
+    @NotNull
+    public List<String> getEntryNames() {
+        return index.getEntries().values().stream().filter(entry -> !entry.isDirectory()).map(ZipIndex.Entry::getName)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * How much of the book is parsed when the reader is opened.
+     */
+    public enum OpenMode {
+        /**
+         * Parse the container, OPF and NCX files at open time.
+         */
+        EAGER,
+        /**
+         * Parse the metadata of the OPF file at open time only, see {@link EPUBBook}.
+         */
+        LAZY
+    }
+
+    private class LazyLoader implements EPUBBook.Loader {
+        public void loadManifests(@NotNull EPUBBook book) throws InitException {
+            EPUBBook fullBook = parseOPF();
+            book.setManifests(fullBook.getManifests());
+            book.setSpines(fullBook.getSpines());
+        }
+
+        public void loadNcx(@NotNull EPUBBook book) throws InitException {
+            book.setNcx(parseNCX(book.getSpines().getSpineFilePath()));
         }
     }
 
-    public void writeManifest(@NotNull String dstPath, @NotNull String newText) throws IOException {
-        writeFile(resourcePath + "/" + dstPath, newText);
+    @NotNull
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignored) {
+        }
     }
 
     public void close() throws IOException {
-        fileSystem.close();
+        if (channel != null) {
+            channel.close();
+        }
     }
 }
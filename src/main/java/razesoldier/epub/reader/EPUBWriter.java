@@ -0,0 +1,379 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.reader;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Used to write a new EPUB file sequentially.
+ * The mimetype entry is always written first and stored uncompressed, as required by the OCF specification.
+ * <p>
+ * New entries are compressed by the calling thread, only appending the compressed bytes is serialized,
+ * so the write methods can be called from multiple threads.
+ * Entries of a source book can be copied with {@link #copyFile(EPUBReader, String)}, which moves the original
+ * compressed bytes without inflating them again. Large entries can be streamed with {@link #newEntry(String)}.
+ */
+public class EPUBWriter implements Closeable {
+    static final String MIMETYPE = "application/epub+zip";
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int END_SIZE = 22;
+    private static final int VERSION = 20;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+    private static final long MAX_ZIP32 = 0xFFFFFFFFL;
+    private static final int MAX_ENTRIES = 0xFFFF;
+
+    private FileChannel channel;
+    private List<CentralRecord> records = new ArrayList<>();
+    private int dosTime;
+    private int dosDate;
+
+    public EPUBWriter(@NotNull Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        LocalDateTime now = LocalDateTime.now();
+        dosTime = (now.getHour() << 11) | (now.getMinute() << 5) | (now.getSecond() >> 1);
+        dosDate = ((Math.max(now.getYear(), 1980) - 1980) << 9) | (now.getMonthValue() << 5) | now.getDayOfMonth();
+        writeMimetype();
+    }
+
+    private void writeMimetype() throws IOException {
+        byte[] bytes = MIMETYPE.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        append(new CentralRecord("mimetype", ZipEntry.STORED, 0, dosTime, dosDate, crc.getValue(), bytes.length,
+                bytes.length), ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Write a text entry encoded in UTF-8.
+     */
+    public void writeFile(@NotNull String entry, @NotNull String text) throws IOException {
+        writeFile(entry, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write a new entry, it is deflated unless that does not make it smaller.
+     */
+    public void writeFile(@NotNull String entry, @NotNull byte[] bytes) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        byte[] compressed = deflate(bytes);
+        if (compressed.length < bytes.length) {
+            append(new CentralRecord(entry, ZipEntry.DEFLATED, FLAG_UTF8, dosTime, dosDate, crc.getValue(),
+                    compressed.length, bytes.length), ByteBuffer.wrap(compressed));
+        } else {
+            append(new CentralRecord(entry, ZipEntry.STORED, FLAG_UTF8, dosTime, dosDate, crc.getValue(),
+                    bytes.length, bytes.length), ByteBuffer.wrap(bytes));
+        }
+    }
+
+    /**
+     * Open a new entry for streaming, it is always deflated.
+     * The compressed data is buffered, in a temporary file once it is large, and the entry is appended to the book
+     * when the stream is closed, unless it is discarded.
+     */
+    @NotNull
+    public EntryOutputStream newEntry(@NotNull String entry) {
+        return new EntryOutputStream(entry);
+    }
+
+    /**
+     * Copy an entry from the source book as it is.
+     * The compressed data is transferred from the source file directly, the CRC, sizes, method and
+     * modification time are kept.
+     */
+    public void copyFile(@NotNull EPUBReader source, @NotNull String entry) throws IOException, ZipEntryNotFoundException {
+        ZipIndex.Entry sourceEntry = source.getIndex().getEntry(entry);
+        if (sourceEntry == null) {
+            throw new ZipEntryNotFoundException(entry);
+        }
+        FileChannel sourceChannel = source.getChannel();
+        long dataOffset = ZipIndex.getDataOffset(sourceChannel, sourceEntry);
+        // The sizes are known now, so a data descriptor is no longer needed
+        int flags = (sourceEntry.getFlags() & ~FLAG_DATA_DESCRIPTOR) | FLAG_UTF8;
+        CentralRecord record = new CentralRecord(entry, sourceEntry.getMethod(), flags, sourceEntry.getTime(),
+                sourceEntry.getDate(), sourceEntry.getCrc(), sourceEntry.getCompressedSize(), sourceEntry.getSize());
+        append(record, sourceChannel, dataOffset);
+    }
+
+    /**
+     * Add an entry whose data was deflated beforehand, e.g. by an {@link EntryOutputStream} that copied it.
+     *
+     * @param source   The file that holds the deflated data
+     * @param position Where the data starts in source
+     */
+    public void writeDeflatedFile(@NotNull String entry, long crc, long size, @NotNull FileChannel source,
+                                  long position, long compressedSize) throws IOException {
+        append(new CentralRecord(entry, ZipEntry.DEFLATED, FLAG_UTF8, dosTime, dosDate, crc, compressedSize, size),
+                source, position);
+    }
+
+    @NotNull
+    private static byte[] deflate(@NotNull byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(bytes.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                outputStream.write(buffer, 0, length);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private synchronized void append(@NotNull CentralRecord record, @NotNull ByteBuffer data) throws IOException {
+        writeLocalHeader(record);
+        writeFully(data);
+    }
+
+    private synchronized void append(@NotNull CentralRecord record, @NotNull SpillBuffer data) throws IOException {
+        writeLocalHeader(record);
+        data.transferTo(channel);
+    }
+
+    private synchronized void append(@NotNull CentralRecord record, @NotNull FileChannel source, long position)
+            throws IOException {
+        writeLocalHeader(record);
+        long count = record.compressedSize;
+        while (count > 0) {
+            long transferred = source.transferTo(position, count, channel);
+            if (transferred <= 0) {
+                throw new ZipException("Unexpected end of entry data: " + record.name);
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    private void writeLocalHeader(@NotNull CentralRecord record) throws IOException {
+        record.localHeaderOffset = channel.position();
+        if (record.compressedSize >= MAX_ZIP32 || record.size >= MAX_ZIP32 || record.localHeaderOffset >= MAX_ZIP32
+                || records.size() >= MAX_ENTRIES) {
+            throw new ZipException("Zip64 output is not supported: " + record.name);
+        }
+        ByteBuffer header = ByteBuffer.allocate(ZipIndex.LOCAL_HEADER_SIZE + record.nameBytes.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(ZipIndex.LOCAL_HEADER_SIGNATURE)
+                .putShort((short) VERSION)
+                .putShort((short) record.flags)
+                .putShort((short) record.method)
+                .putShort((short) record.time)
+                .putShort((short) record.date)
+                .putInt((int) record.crc)
+                .putInt((int) record.compressedSize)
+                .putInt((int) record.size)
+                .putShort((short) record.nameBytes.length)
+                .putShort((short) 0)
+                .put(record.nameBytes);
+        writeFully(header.flip());
+        records.add(record);
+    }
+
+    private void writeFully(@NotNull ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Write the central directory and close the file.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            long directoryOffset = channel.position();
+            int directorySize = 0;
+            for (CentralRecord record : records) {
+                directorySize += CENTRAL_HEADER_SIZE + record.nameBytes.length;
+            }
+            ByteBuffer directory = ByteBuffer.allocate(directorySize + END_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            for (CentralRecord record : records) {
+                directory.putInt(CENTRAL_HEADER_SIGNATURE)
+                        .putShort((short) VERSION)
+                        .putShort((short) VERSION)
+                        .putShort((short) record.flags)
+                        .putShort((short) record.method)
+                        .putShort((short) record.time)
+                        .putShort((short) record.date)
+                        .putInt((int) record.crc)
+                        .putInt((int) record.compressedSize)
+                        .putInt((int) record.size)
+                        .putShort((short) record.nameBytes.length)
+                        .putShort((short) 0) // Extra field length
+                        .putShort((short) 0) // Comment length
+                        .putShort((short) 0) // Disk number
+                        .putShort((short) 0) // Internal attributes
+                        .putInt(0) // External attributes
+                        .putInt((int) record.localHeaderOffset)
+                        .put(record.nameBytes);
+            }
+            if (directoryOffset >= MAX_ZIP32) {
+                throw new ZipException("Zip64 output is not supported");
+            }
+            directory.putInt(END_SIGNATURE)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putShort((short) records.size())
+                    .putShort((short) records.size())
+                    .putInt(directorySize)
+                    .putInt((int) directoryOffset)
+                    .putShort((short) 0);
+            writeFully(directory.flip());
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * The stream of an entry opened by {@link #newEntry(String)}.
+     */
+    public class EntryOutputStream extends OutputStream {
+        private String entry;
+        private CRC32 crc = new CRC32();
+        private Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private SpillBuffer compressed = new SpillBuffer(SpillBuffer.DEFAULT_THRESHOLD);
+        private DeflaterOutputStream deflaterStream = new DeflaterOutputStream(compressed, deflater, 8192);
+        private long size;
+        private List<WritableByteChannel> copies = new ArrayList<>();
+        private boolean discarded;
+        private boolean closed;
+
+        private EntryOutputStream(@NotNull String entry) {
+            this.entry = entry;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(@NotNull byte[] bytes, int offset, int length) throws IOException {
+            crc.update(bytes, offset, length);
+            deflaterStream.write(bytes, offset, length);
+            size += length;
+        }
+
+        /**
+         * Also write the deflated data to the given channel when the stream is closed, before the entry is added.
+         * The data can be added to another book with {@link #writeDeflatedFile}, using {@link #getCrc()},
+         * {@link #getSize()} and {@link #getCompressedSize()}.
+         */
+        public void addCopy(@NotNull WritableByteChannel copy) {
+            copies.add(copy);
+        }
+
+        public long getCrc() {
+            return crc.getValue();
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return The size of the deflated data, once the stream is closed
+         */
+        public long getCompressedSize() {
+            return compressed.size();
+        }
+
+        /**
+         * Drop what has been written, the entry is not added to the book when the stream is closed.
+         * The caller may write the entry in another way, e.g. by {@link #copyFile(EPUBReader, String)}.
+         */
+        public void discard() {
+            discarded = true;
+        }
+
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (discarded) {
+                    return;
+                }
+                deflaterStream.finish();
+                for (WritableByteChannel copy : copies) {
+                    compressed.transferTo(copy);
+                }
+                append(new CentralRecord(entry, ZipEntry.DEFLATED, FLAG_UTF8, dosTime, dosDate, crc.getValue(),
+                        compressed.size(), size), compressed);
+            } finally {
+                deflater.end();
+                compressed.close();
+            }
+        }
+    }
+
+    private static class CentralRecord {
+        private String name;
+        private byte[] nameBytes;
+        private int method;
+        private int flags;
+        private int time;
+        private int date;
+        private long crc;
+        private long compressedSize;
+        private long size;
+        private long localHeaderOffset;
+
+        @Contract(pure = true)
+        private CentralRecord(@NotNull String name, int method, int flags, int time, int date, long crc,
+                              long compressedSize, long size) {
+            this.name = name;
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            this.method = method;
+            this.flags = flags;
+            this.time = time;
+            this.date = date;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.reader;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the raw data of a zip entry with positional reads, so many streams can share one {@link FileChannel}.
+ * The content is checked against the CRC-32 and the size of the entry when its end is reached.
+ */
+class EntryInputStream extends InputStream {
+    private FileChannel channel;
+    private long position;
+    private long remaining;
+
+    private EntryInputStream(@NotNull FileChannel channel, long position, long length) {
+        this.channel = channel;
+        this.position = position;
+        this.remaining = length;
+    }
+
+    /**
+     * Open a stream that returns the uncompressed content of the entry.
+     */
+    @NotNull
+    static InputStream open(@NotNull FileChannel channel, @NotNull ZipIndex.Entry entry) throws IOException {
+        InputStream raw = new EntryInputStream(channel, ZipIndex.getDataOffset(channel, entry),
+                entry.getCompressedSize());
+        switch (entry.getMethod()) {
+            case ZipEntry.STORED:
+                return new CheckedEntryInputStream(raw, entry);
+            case ZipEntry.DEFLATED:
+                return new CheckedEntryInputStream(new EntryInflaterInputStream(raw, entry.getSize()), entry);
+            default:
+                throw new ZipException("Unsupported compression method " + entry.getMethod() + ": " + entry.getName());
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : Byte.toUnsignedInt(b[0]);
+    }
+
+    @Override
+    public int read(@NotNull byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, remaining));
+        int n = channel.read(buffer, position);
+        if (n < 0) {
+            throw new EOFException("Unexpected end of zip entry");
+        }
+        position += n;
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, remaining));
+        position += skipped;
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Computes the CRC-32 and the size of the content, and compares them with the entry at the end of the content.
+     * A mismatch, a corrupted or truncated book, throws a {@link ZipException} instead of returning damaged data.
+     */
+    private static class CheckedEntryInputStream extends FilterInputStream {
+        private ZipIndex.Entry entry;
+        private CRC32 crc = new CRC32();
+        private long size;
+        private boolean checked;
+
+        private CheckedEntryInputStream(@NotNull InputStream in, @NotNull ZipIndex.Entry entry) {
+            super(in);
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : Byte.toUnsignedInt(b[0]);
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n == -1) {
+                check();
+                return -1;
+            }
+            crc.update(b, off, n);
+            size += n;
+            if (size > entry.getSize()) {
+                throw new ZipException("Entry is longer than its size " + entry.getSize() + ": " + entry.getName());
+            }
+            return n;
+        }
+
+        /**
+         * Skipped content is read, it is part of the CRC.
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.max(0, Math.min(n, 8192))];
+            long skipped = 0;
+            while (skipped < n) {
+                int count = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (count == -1) {
+                    break;
+                }
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        private void check() throws ZipException {
+            if (checked) {
+                return;
+            }
+            checked = true;
+            if (size != entry.getSize()) {
+                throw new ZipException("Entry has " + size + " bytes instead of " + entry.getSize() + ": "
+                        + entry.getName());
+            }
+            if (crc.getValue() != entry.getCrc()) {
+                throw new ZipException(String.format("Invalid CRC-32 %08x, expected %08x: %s", crc.getValue(),
+                        entry.getCrc(), entry.getName()));
+            }
+        }
+    }
+
+    /**
+     * Releases the native inflater on close, and feeds a dummy byte at the end of the raw data,
+     * which a nowrap {@link Inflater} may need to finish.
+     */
+    private static class EntryInflaterInputStream extends InflaterInputStream {
+        private long remaining;
+        private boolean eof;
+
+        private EntryInflaterInputStream(@NotNull InputStream in, long size) {
+            super(in, new Inflater(true), (int) Math.max(64, Math.min(size, 8192)));
+            this.remaining = size;
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("Unexpected end of zip entry");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}
@@ -18,89 +18,140 @@
 package razesoldier.epub.reader;
 
 import org.jetbrains.annotations.NotNull;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import java.io.IOException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Used to parse the NCX file (Navigation Control file for XML).
+ * The file is read in a single forward pass, no DOM is built.
  */
 class NCXParser {
-    private Document document;
-    private EPUBBook.NCX ncx;
+    private InputStream inputStream;
 
-    NCXParser(@NotNull InputStream is) throws ParserConfigurationException, SAXException, ZipReadException {
-        try {
-            document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(is);
-        } catch (IOException e) {
-            throw new ZipReadException(e);
-        }
-    }
-
-    EPUBBook.NCX parse() {
-        ncx = new EPUBBook.NCX();
-        parseHead();
-        parseTitle();
-        parseAuthor();
-        parseNavMap();
-        return ncx;
+    NCXParser(@NotNull InputStream is) {
+        inputStream = is;
     }
 
-    private void parseHead() {
-        NodeList headNodes = document.getElementsByTagName("head").item(0).getChildNodes();
+    EPUBBook.NCX parse() throws XMLStreamException {
+        EPUBBook.NCX ncx = new EPUBBook.NCX();
         Map<String, String> metadata = new HashMap<>();
-        for (int i = 0; i < headNodes.getLength(); ++i) {
-            Node node = headNodes.item(i);
-            if (!(node instanceof Element) || !node.getNodeName().equals("meta")) {
-                continue;
+        Map<String, EPUBBook.NCX.NavPoint> navPointMap = new HashMap<>();
+
+        XMLStreamReader reader = XMLStreams.newReader(inputStream);
+        try {
+            Deque<String> elements = new ArrayDeque<>();
+            // The element that the next <text> belongs to: docTitle, docAuthor or a top level navPoint
+            String textOwner = null;
+            NavPointBuilder navPoint = null;
+            int navPointDepth = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = elements.pollLast();
+                    if (navPoint != null && elements.size() == navPointDepth && "navPoint".equals(name)) {
+                        navPointMap.put(navPoint.id, navPoint.build());
+                        navPoint = null;
+                    }
+                    if (name != null && name.equals(textOwner)) {
+                        textOwner = null;
+                    }
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = reader.getLocalName();
+                String parent = elements.peekLast();
+                switch (name) {
+                    case "meta":
+                        if ("head".equals(parent)) {
+                            metadata.put(getAttribute(reader, "name"), getAttribute(reader, "content"));
+                        }
+                        break;
+                    case "docTitle":
+                    case "docAuthor":
+                        if (navPoint == null) {
+                            textOwner = name;
+                        }
+                        break;
+                    case "navPoint":
+                        if ("navMap".equals(parent)) {
+                            navPoint = new NavPointBuilder(getAttribute(reader, "id"), getAttribute(reader, "playOrder"));
+                            navPointDepth = elements.size();
+                            textOwner = name;
+                        }
+                        break;
+                    case "text":
+                        if (textOwner != null) {
+                            String text = XMLStreams.readText(reader);
+                            if (navPoint != null) {
+                                navPoint.text = text;
+                            } else if (textOwner.equals("docTitle")) {
+                                ncx.setTitle(text);
+                            } else {
+                                ncx.setAuthor(text);
+                            }
+                            // Only the first <text> of an element is used
+                            textOwner = null;
+                            continue;
+                        }
+                        break;
+                    case "content":
+                        if (navPoint != null && navPoint.contentRef == null) {
+                            navPoint.contentRef = getAttribute(reader, "src");
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                elements.addLast(name);
             }
-            metadata.put(((Element) node).getAttribute("name"), ((Element) node).getAttribute("content"));
+        } finally {
+            reader.close();
         }
 
         ncx.setMetadata(metadata);
+        ncx.setNavPointMap(navPointMap);
+        return ncx;
     }
 
-    private void parseTitle() {
-        Element element = (Element) document.getElementsByTagName("docTitle").item(0);
-        if (element == null) {
-            return;
-        }
-        ncx.setTitle(element.getElementsByTagName("text").item(0).getTextContent());
+    /**
+     * Get an attribute value, or an empty string if it does not exist, the same as DOM does.
+     */
+    @NotNull
+    private static String getAttribute(@NotNull XMLStreamReader reader, @NotNull String name) {
+        String value = reader.getAttributeValue(null, name);
+        return value == null ? "" : value;
     }
 
-    private void parseAuthor() {
-        Element element = (Element) document.getElementsByTagName("docAuthor").item(0);
-        if (element == null) {
-            return;
+    private static class NavPointBuilder {
+        private String id;
+        private String order;
+        private String text;
+        private String contentRef;
+
+        private NavPointBuilder(@NotNull String id, @NotNull String order) {
+            this.id = id;
+            this.order = order;
         }
-        ncx.setAuthor(element.getElementsByTagName("text").item(0).getTextContent());
-    }
 
-    private void parseNavMap() {
-        NodeList navMap = document.getElementsByTagName("navMap").item(0).getChildNodes();
-        Map<String, EPUBBook.NCX.NavPoint> navPointMap = new HashMap<>();
-        for (int i = 0; i < navMap.getLength(); ++i) {
-            Node node = navMap.item(i);
-            if (!(node instanceof Element) || !node.getNodeName().equals("navPoint")) {
-                continue;
+        @NotNull
+        private EPUBBook.NCX.NavPoint build() throws XMLStreamException {
+            if (text == null || contentRef == null) {
+                throw new XMLStreamException("Incomplete navPoint: " + id);
+            }
+            try {
+                return new EPUBBook.NCX.NavPoint(Integer.valueOf(order.trim()), id, text, contentRef);
+            } catch (NumberFormatException e) {
+                throw new XMLStreamException("Invalid playOrder of navPoint " + id + ": " + order);
             }
-            Element element = (Element) node;
-            String id = element.getAttribute("id");
-            Integer order = Integer.valueOf(element.getAttribute("playOrder"));
-            String text = element.getElementsByTagName("text").item(0).getTextContent();
-            String ref = ((Element) element.getElementsByTagName("content").item(0)).getAttribute("src");
-            navPointMap.put(id, new EPUBBook.NCX.NavPoint(order, id, text, ref));
         }
-
-        ncx.setNavPointMap(navPointMap);
     }
 }
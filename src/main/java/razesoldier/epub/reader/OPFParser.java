@@ -18,30 +18,26 @@
 package razesoldier.epub.reader;
 
 import org.jetbrains.annotations.NotNull;
-import org.w3c.dom.*;
-import org.xml.sax.SAXException;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.File;
-import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 /**
  * Parser that can parse a Open Packaging Format file (.opf).
- * Using {@link #parse()} to get the {@link EPUBBook} instance.
+ * Using {@link #parse()} to get the {@link EPUBBook} instance,
+ * or {@link #parseMetadata()} to get one that only has its metadata set.
+ * The file is read in a single forward pass, no DOM is built.
  */
 class OPFParser {
-    private Document document;
-    private EPUBBook book;
+    private InputStream inputStream;
     private String resourcePath;
 
-    OPFParser(@NotNull InputStream inputStream, @NotNull String opfFilePath) throws ParserConfigurationException, IOException, SAXException {
-        document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(inputStream);
+    OPFParser(@NotNull InputStream inputStream, @NotNull String opfFilePath) {
+        this.inputStream = inputStream;
         resourcePath = new File(opfFilePath).getParent();
         if (resourcePath == null) {
             resourcePath = "/";
@@ -50,95 +46,90 @@ class OPFParser {
         }
     }
 
-    EPUBBook parse() {
-        book = new EPUBBook();
-        readMetadata();
-        readManifest();
-        readSpine();
-        return book;
+    EPUBBook parse() throws XMLStreamException {
+        return parse(false);
     }
 
-    @NotNull
-    String getResourcePath() {
-        return resourcePath;
+    /**
+     * Parse the metadata only, reading stops at the end of the metadata element.
+     */
+    EPUBBook parseMetadata() throws XMLStreamException {
+        return parse(true);
     }
 
-    private void readMetadata() {
-        // Get title meta @{
-        String title = getMetadataFromDOM("dc:title", "");
-        // @}
-
-        // Get language @{
-        String language = getMetadataFromDOM("dc:language", "en");
-        // @}
-
-        // Get all metadata @{
-        NodeList metadata = document.getElementsByTagName("metadata").item(0).getChildNodes();
+    private EPUBBook parse(boolean metadataOnly) throws XMLStreamException {
+        String title = null;
+        String language = null;
         Map<String, String> metaMap = new HashMap<>();
-        for (int i = 0; i < metadata.getLength(); ++i) {
-            Node node = metadata.item(i);
-            if (node.getNodeName().contains("dc:")) {
-                String metaName = node.getNodeName().replaceFirst("dc:", "");
-                metaMap.put(metaName, node.getTextContent());
-            }
-        }
-        // @}
-        book.setMetadata(title, language, metaMap);
-    }
-
-    private void readManifest() {
-        NodeList manifests = document.getElementsByTagName("manifest").item(0).getChildNodes();
         Map<String, EPUBBook.Manifest> manifestMap = new HashMap<>();
-        for (int i = 0; i < manifests.getLength(); ++i) {
-            Node node = manifests.item(i);
-            if (!node.getNodeName().equals("item")) {
-                continue;
-            }
-            NamedNodeMap attributes = node.getAttributes();
-            String id = attributes.getNamedItem("id").getTextContent();
-            String filePath = attributes.getNamedItem("href").getTextContent();
-            String mediaType = attributes.getNamedItem("media-type").getTextContent();
-            manifestMap.put(id, new EPUBBook.Manifest(id, filePath, mediaType));
-        }
-        book.setManifests(manifestMap);
-    }
-
-    private void readSpine() {
-        Element spineNode = (Element) document.getElementsByTagName("spine").item(0);
-        String spineManifestId = spineNode.getAttribute("toc");
-        NodeList spines = spineNode.getChildNodes();
+        String spineManifestId = null;
         List<String> spineList = new ArrayList<>();
-        for (int i = 0; i < spines.getLength(); ++i) {
-            Node node = spines.item(i);
-            if (!node.getNodeName().equals("itemref")) {
-                continue;
-            }
-            spineList.add(node.getAttributes().getNamedItem("idref").getTextContent());
-        }
-        book.setSpines(
-                new EPUBBook.Spines(resourcePath + "/" + book.getManifests().get(spineManifestId).getFilePath(),
-                        spineList)
-        );
-    }
 
-    private String getMetadataFromDOM(@NotNull String nodeName, @NotNull String defaultValue) {
-        NodeList nodeList = document.getElementsByTagName(nodeName);
-        String result = null;
-        if (nodeList.getLength() != 0) {
-            for (int i = 0; i < nodeList.getLength(); ++i) {
-                Node node = nodeList.item(i);
-                Node parent = node.getParentNode();
-                if (parent != null) {
-                    if (parent.getNodeName().equals("metadata")) {
-                        result = node.getTextContent();
+        XMLStreamReader reader = XMLStreams.newReader(inputStream);
+        try {
+            Deque<String> elements = new ArrayDeque<>();
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    if ("metadata".equals(elements.pollLast()) && metadataOnly) {
                         break;
                     }
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = reader.getLocalName();
+                String parent = elements.peekLast();
+                if ("metadata".equals(parent) && name.contains("dc:")) {
+                    // readText() consumes the end element, so this element is not pushed
+                    String text = XMLStreams.readText(reader);
+                    if (title == null && name.equals("dc:title")) {
+                        title = text;
+                    }
+                    if (language == null && name.equals("dc:language")) {
+                        language = text;
+                    }
+                    metaMap.put(name.replaceFirst("dc:", ""), text);
+                    continue;
                 }
+                if ("manifest".equals(parent) && name.equals("item")) {
+                    String id = reader.getAttributeValue(null, "id");
+                    String filePath = reader.getAttributeValue(null, "href");
+                    String mediaType = reader.getAttributeValue(null, "media-type");
+                    if (id != null && filePath != null && mediaType != null) {
+                        manifestMap.put(id, new EPUBBook.Manifest(id, filePath, mediaType));
+                    }
+                } else if (name.equals("spine") && spineManifestId == null) {
+                    spineManifestId = Objects.requireNonNullElse(reader.getAttributeValue(null, "toc"), "");
+                } else if ("spine".equals(parent) && name.equals("itemref")) {
+                    String idref = reader.getAttributeValue(null, "idref");
+                    if (idref != null) {
+                        spineList.add(idref);
+                    }
+                }
+                elements.addLast(name);
             }
+        } finally {
+            reader.close();
         }
-        if (result == null) {
-            result = defaultValue;
+
+        EPUBBook book = new EPUBBook();
+        book.setMetadata(title == null ? "" : title, language == null ? "en" : language, metaMap);
+        if (metadataOnly) {
+            return book;
         }
-        return result;
+        book.setManifests(manifestMap);
+        EPUBBook.Manifest ncxManifest = manifestMap.get(spineManifestId);
+        if (ncxManifest == null) {
+            throw new XMLStreamException("The NCX file is not declared in the spine");
+        }
+        book.setSpines(new EPUBBook.Spines(resourcePath + "/" + ncxManifest.getFilePath(), spineList));
+        return book;
+    }
+
+    @NotNull
+    String getResourcePath() {
+        return resourcePath;
     }
 }
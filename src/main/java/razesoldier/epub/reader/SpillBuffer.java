@@ -0,0 +1,117 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.reader;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A buffer for the compressed data of an entry that is being written.
+ * Data is kept in memory up to a threshold, then moved to a temporary file, so large entries do not need
+ * memory in proportion to their size. {@link #close()} deletes the temporary file.
+ */
+class SpillBuffer extends OutputStream {
+    static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+    private int threshold;
+    private byte[] memory = new byte[8192];
+    private int memorySize;
+    private Path file;
+    private FileChannel fileChannel;
+    private long size;
+
+    SpillBuffer(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    public void write(@NotNull byte[] bytes, int offset, int length) throws IOException {
+        if (fileChannel == null && memorySize + length > threshold) {
+            spill();
+        }
+        if (fileChannel != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+        } else {
+            if (memorySize + length > memory.length) {
+                memory = Arrays.copyOf(memory, Math.max(memory.length * 2, memorySize + length));
+            }
+            System.arraycopy(bytes, offset, memory, memorySize, length);
+            memorySize += length;
+        }
+        size += length;
+    }
+
+    private void spill() throws IOException {
+        file = Files.createTempFile("epub-entry", ".tmp");
+        fileChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        ByteBuffer buffer = ByteBuffer.wrap(memory, 0, memorySize);
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
+        }
+        memory = null;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Write all data to the channel.
+     */
+    void transferTo(@NotNull WritableByteChannel channel) throws IOException {
+        if (fileChannel == null) {
+            ByteBuffer buffer = ByteBuffer.wrap(memory, 0, memorySize);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            return;
+        }
+        long position = 0;
+        while (position < size) {
+            long transferred = fileChannel.transferTo(position, size - position, channel);
+            if (transferred <= 0) {
+                throw new IOException("Unexpected end of spill file: " + file);
+            }
+            position += transferred;
+        }
+    }
+
+    public void close() throws IOException {
+        memory = null;
+        if (fileChannel != null) {
+            fileChannel.close();
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.reader;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.ZipException;
+
+/**
+ * An immutable index of the central directory of a zip file, built with one scan when the file is opened.
+ * Use {@link EPUBReader#getIndex()} to get the index of a book.
+ */
+public class ZipIndex {
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    private Map<String, Entry> entries;
+
+    private ZipIndex(@NotNull Map<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Read the central directory of the zip file opened by the channel.
+     */
+    @NotNull
+    static ZipIndex read(@NotNull FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = readFully(channel, fileSize - tailSize, tailSize);
+        int endPos = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; --i) {
+            if (tail.getInt(i) == END_SIGNATURE) {
+                endPos = i;
+                break;
+            }
+        }
+        if (endPos < 0) {
+            throw new ZipException("End of central directory record not found");
+        }
+
+        long entryCount = Short.toUnsignedInt(tail.getShort(endPos + 10));
+        long directorySize = Integer.toUnsignedLong(tail.getInt(endPos + 12));
+        long directoryOffset = Integer.toUnsignedLong(tail.getInt(endPos + 16));
+        long locatorPos = fileSize - tailSize + endPos - ZIP64_LOCATOR_SIZE;
+        if (locatorPos >= 0 && (entryCount == 0xFFFF || directorySize == ZIP64_MAGIC || directoryOffset == ZIP64_MAGIC)) {
+            ByteBuffer locator = readFully(channel, locatorPos, ZIP64_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                ByteBuffer end64 = readFully(channel, locator.getLong(8), ZIP64_END_SIZE);
+                if (end64.getInt(0) != ZIP64_END_SIGNATURE) {
+                    throw new ZipException("Invalid zip64 end of central directory record");
+                }
+                entryCount = end64.getLong(32);
+                directorySize = end64.getLong(40);
+                directoryOffset = end64.getLong(48);
+            }
+        }
+        if (directorySize < 0 || directorySize > Integer.MAX_VALUE || directoryOffset < 0
+                || directoryOffset + directorySize > fileSize) {
+            throw new ZipException("Invalid central directory");
+        }
+
+        ByteBuffer directory = readFully(channel, directoryOffset, (int) directorySize);
+        Map<String, Entry> entries = new LinkedHashMap<>((int) Math.min(entryCount * 2, 1 << 16));
+        int pos = 0;
+        while (pos + CENTRAL_HEADER_SIZE <= directorySize && directory.getInt(pos) == CENTRAL_HEADER_SIGNATURE) {
+            Entry entry = readEntry(directory, pos);
+            entries.put(entry.name, entry);
+            pos += CENTRAL_HEADER_SIZE + Short.toUnsignedInt(directory.getShort(pos + 28))
+                    + Short.toUnsignedInt(directory.getShort(pos + 30)) + Short.toUnsignedInt(directory.getShort(pos + 32));
+        }
+        return new ZipIndex(Collections.unmodifiableMap(entries));
+    }
+
+    @NotNull
+    private static Entry readEntry(@NotNull ByteBuffer directory, int pos) throws ZipException {
+        int flags = Short.toUnsignedInt(directory.getShort(pos + 8));
+        int method = Short.toUnsignedInt(directory.getShort(pos + 10));
+        int time = Short.toUnsignedInt(directory.getShort(pos + 12));
+        int date = Short.toUnsignedInt(directory.getShort(pos + 14));
+        long crc = Integer.toUnsignedLong(directory.getInt(pos + 16));
+        long compressedSize = Integer.toUnsignedLong(directory.getInt(pos + 20));
+        long size = Integer.toUnsignedLong(directory.getInt(pos + 24));
+        int nameLength = Short.toUnsignedInt(directory.getShort(pos + 28));
+        int extraLength = Short.toUnsignedInt(directory.getShort(pos + 30));
+        int commentLength = Short.toUnsignedInt(directory.getShort(pos + 32));
+        long localHeaderOffset = Integer.toUnsignedLong(directory.getInt(pos + 42));
+        // A truncated or corrupt directory must not be read past its end
+        if ((long) pos + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength > directory.limit()) {
+            throw new ZipException("Truncated central directory entry at offset " + pos);
+        }
+
+        byte[] nameBytes = new byte[nameLength];
+        directory.get(pos + CENTRAL_HEADER_SIZE, nameBytes);
+        String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+        // Sizes and offset that do not fit into 32 bits are stored in the zip64 extra field, in this order
+        int extraPos = pos + CENTRAL_HEADER_SIZE + nameLength;
+        int extraEnd = extraPos + extraLength;
+        while (extraPos + 4 <= extraEnd) {
+            int id = Short.toUnsignedInt(directory.getShort(extraPos));
+            int length = Short.toUnsignedInt(directory.getShort(extraPos + 2));
+            int fieldEnd = extraPos + 4 + length;
+            if (fieldEnd > extraEnd) {
+                throw new ZipException("Invalid extra field of entry: " + name);
+            }
+            if (id == ZIP64_EXTRA_ID) {
+                int fieldPos = extraPos + 4;
+                if (size == ZIP64_MAGIC) {
+                    size = readZip64Value(directory, fieldPos, fieldEnd, name);
+                    fieldPos += 8;
+                }
+                if (compressedSize == ZIP64_MAGIC) {
+                    compressedSize = readZip64Value(directory, fieldPos, fieldEnd, name);
+                    fieldPos += 8;
+                }
+                if (localHeaderOffset == ZIP64_MAGIC) {
+                    localHeaderOffset = readZip64Value(directory, fieldPos, fieldEnd, name);
+                }
+                break;
+            }
+            extraPos += 4 + length;
+        }
+        if (size < 0 || compressedSize < 0 || localHeaderOffset < 0) {
+            throw new ZipException("Invalid central directory entry: " + name);
+        }
+        return new Entry(name, method, flags, time, date, crc, compressedSize, size, localHeaderOffset);
+    }
+
+    private static long readZip64Value(@NotNull ByteBuffer directory, int fieldPos, int fieldEnd,
+                                       @NotNull String name) throws ZipException {
+        if (fieldPos + 8 > fieldEnd) {
+            throw new ZipException("Invalid zip64 extra field of entry: " + name);
+        }
+        return directory.getLong(fieldPos);
+    }
+
+    /**
+     * Get the position of the entry data, which follows the local file header.
+     * The local header is read on first use only.
+     */
+    static long getDataOffset(@NotNull FileChannel channel, @NotNull Entry entry) throws IOException {
+        if (entry.dataOffset >= 0) {
+            return entry.dataOffset;
+        }
+        ByteBuffer header = readFully(channel, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local file header: " + entry.name);
+        }
+        entry.dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE + Short.toUnsignedInt(header.getShort(26))
+                + Short.toUnsignedInt(header.getShort(28));
+        return entry.dataOffset;
+    }
+
+    @NotNull
+    private static ByteBuffer readFully(@NotNull FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Get an entry by its exact name.
+     */
+    @Nullable
+    public Entry getEntry(@NotNull String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Get all entries in central directory order.
+     *
+     * @return A map, the key is the entry name, the value is a {@link Entry} instance.
+     */
+    @NotNull
+    public Map<String, Entry> getEntries() {
+        return entries;
+    }
+
+    public static class Entry {
+        private String name;
+        private int method;
+        private int flags;
+        private int time;
+        private int date;
+        private long crc;
+        private long compressedSize;
+        private long size;
+        private long localHeaderOffset;
+        private volatile long dataOffset = -1;
+
+        @Contract(pure = true)
+        Entry(@NotNull String name, int method, int flags, int time, int date, long crc, long compressedSize, long size,
+              long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.flags = flags;
+            this.time = time;
+            this.date = date;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        @NotNull
+        public String getName() {
+            return name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public int getTime() {
+            return time;
+        }
+
+        public int getDate() {
+            return date;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+}
@@ -1,4 +1,4 @@
 /**
- * This package includes classes for reading ePub files.
+ * This package includes classes for reading and writing ePub files.
  */
 package razesoldier.epub.reader;
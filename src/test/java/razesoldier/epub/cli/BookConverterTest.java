@@ -0,0 +1,106 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+package razesoldier.epub.cli;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import razesoldier.epub.reader.EPUBReader;
+import razesoldier.epub.reader.EPUBWriter;
+
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BookConverterTest {
+    private static final String TRADITIONAL = "他說這本書是國王的。";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testDomDecodesEncoding() throws Exception {
+        Path book = tempDir.resolve("book.epub");
+        TestBooks.write(book, "zh-TW", "書", StandardCharsets.UTF_16LE, TRADITIONAL);
+        String chapter = readChapter(convertDom(book));
+        assertTrue(chapter.contains("他说這本书是国王的。"), chapter);
+        // The result is UTF-8 and says so
+        assertTrue(chapter.contains("<meta charset=\"UTF-8\">"), chapter);
+        assertFalse(chapter.contains("\uFEFF"));
+
+        TestBooks.write(book, "zh-TW", "書", Charset.forName("Big5"), TRADITIONAL);
+        chapter = readChapter(convertDom(book));
+        assertTrue(chapter.contains("他说這本书是国王的。"), chapter);
+        assertTrue(chapter.contains("<meta charset=\"UTF-8\">"), chapter);
+
+        // A UTF-8 chapter is left as jsoup writes it
+        TestBooks.write(book, "zh-TW", "書", StandardCharsets.UTF_8, TRADITIONAL);
+        chapter = readChapter(convertDom(book));
+        assertTrue(chapter.contains("他说這本书是国王的。"), chapter);
+        assertFalse(chapter.contains("<meta"));
+    }
+
+    @Test
+    void testDomRejectsInvalidText() throws Exception {
+        Path book = tempDir.resolve("book.epub");
+        TestBooks.write(book, "zh-TW", "書", StandardCharsets.UTF_8, TRADITIONAL);
+        // The chapter declares UTF-8 but is not
+        Path invalid = tempDir.resolve("invalid.epub");
+        try (EPUBReader reader = new EPUBReader(book.toString(), EPUBReader.OpenMode.LAZY);
+             EPUBWriter writer = new EPUBWriter(invalid)) {
+            for (String entry : reader.getIndex().getEntries().keySet()) {
+                if (entry.equals("OEBPS/c0.xhtml")) {
+                    writer.writeFile(entry, ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<html><body><p>"
+                            + TRADITIONAL + "</p></body></html>").getBytes(Charset.forName("Big5")));
+                } else if (!entry.equals("mimetype")) {
+                    writer.copyFile(reader, entry);
+                }
+            }
+        }
+        ExecuteException e = assertThrows(ExecuteException.class, () -> convertDom(invalid));
+        Throwable cause = e;
+        while (cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        assertTrue(cause.getMessage().contains("Invalid UTF-8 text"), cause.getMessage());
+    }
+
+    private Path convertDom(Path book) throws Exception {
+        Path out = tempDir.resolve("out.epub");
+        ExecutorService pool = Workers.newPool(2);
+        try {
+            BookConverter converter = new BookConverter(CompletableFuture.completedFuture(TestBooks.CONVERTER), pool,
+                    BookConverter.Rewriter.DOM);
+            assertNull(converter.convert(book, out));
+        } finally {
+            pool.shutdown();
+        }
+        return out;
+    }
+
+    private static String readChapter(Path book) throws Exception {
+        try (ZipFile zipFile = new ZipFile(book.toFile());
+             InputStream is = zipFile.getInputStream(zipFile.getEntry("OEBPS/c0.xhtml"))) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BookFinderTest {
+    @Test
+    void testFind(@TempDir Path tempDir) throws Exception {
+        Files.createDirectories(tempDir.resolve("sub"));
+        Files.createFile(tempDir.resolve("a.epub"));
+        Files.createFile(tempDir.resolve("b.EPUB"));
+        Files.createFile(tempDir.resolve("c.txt"));
+        Files.createFile(tempDir.resolve("sub/d.epub"));
+
+        Map<Path, Path> books = BookFinder.find(tempDir.toString());
+        assertEquals(List.of(Paths.get("a.epub"), Paths.get("b.EPUB"), Paths.get("sub/d.epub")),
+                List.copyOf(books.values()));
+        assertEquals(tempDir.resolve("sub/d.epub"), List.copyOf(books.keySet()).get(2));
+
+        books = BookFinder.find(tempDir + "/**/*.epub");
+        assertEquals(List.of(Paths.get("sub/d.epub")), List.copyOf(books.values()));
+
+        books = BookFinder.find(tempDir.resolve("a.epub").toString());
+        assertEquals(List.of(Paths.get("a.epub")), List.copyOf(books.values()));
+    }
+
+    @Test
+    void testReadList(@TempDir Path tempDir) throws Exception {
+        Path list = tempDir.resolve("books.txt");
+        Files.writeString(list, "# books\nsub/d.epub\n\n/srv/a.epub\n");
+        Map<Path, Path> books = BookFinder.readList(list);
+        assertEquals(List.of(tempDir.resolve("sub/d.epub"), Paths.get("/srv/a.epub")), List.copyOf(books.keySet()));
+        assertEquals(List.of(Paths.get("sub/d.epub"), Paths.get("a.epub")), List.copyOf(books.values()));
+    }
+
+    @Test
+    void testReadListWithDuplicateNames(@TempDir Path tempDir) throws Exception {
+        Path list = tempDir.resolve("books.txt");
+        Files.writeString(list, "/srv/a.epub\n/home/a.epub\n");
+        IOException e = assertThrows(IOException.class, () -> BookFinder.readList(list));
+        assertTrue(e.getMessage().contains("/home/a.epub"), e.getMessage());
+
+        Files.writeString(list, "a.epub\n/srv/a.epub\n");
+        assertThrows(IOException.class, () -> BookFinder.readList(list));
+    }
+
+    @Test
+    void testReadListOutsideOfDirectory(@TempDir Path tempDir) throws Exception {
+        Path list = tempDir.resolve("books.txt");
+        Files.writeString(list, "../x.epub\n");
+        IOException e = assertThrows(IOException.class, () -> BookFinder.readList(list));
+        assertTrue(e.getMessage().contains("../x.epub"), e.getMessage());
+
+        // A path that comes back into the directory is fine
+        Files.writeString(list, "sub/../x.epub\n");
+        assertEquals(List.of(Paths.get("x.epub")), List.copyOf(BookFinder.readList(list).values()));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CatalogFileTest {
+    @Test
+    void testRoundTrip(@TempDir Path tempDir) throws Exception {
+        CatalogRecord book = new CatalogRecord("a/書.epub", 12345, 1588291200000L);
+        book.setMetadata("測試書籍", "zh-TW", Map.of("creator", "作者"));
+        book.setNcx("測試書籍", null, 43);
+        book.addEntry("application/xhtml+xml", 1000);
+        book.addEntry("application/xhtml+xml", 2000);
+        book.addEntry("image/png", 300);
+        CatalogRecord broken = new CatalogRecord("b.epub", 10, 0);
+        broken.setError("Not an EPUB file");
+
+        Path path = tempDir.resolve("catalog.bin");
+        CatalogFile.write(path, List.of(book, broken));
+        List<CatalogRecord> records = CatalogFile.read(path);
+
+        assertEquals(2, records.size());
+        CatalogRecord record = records.get(0);
+        assertEquals("a/書.epub", record.getPath());
+        assertEquals(12345, record.getFileSize());
+        assertEquals(1588291200000L, record.getLastModified());
+        assertNull(record.getError());
+        assertEquals("測試書籍", record.getBookName());
+        assertEquals("zh-TW", record.getLanguage());
+        assertEquals(Map.of("creator", "作者"), record.getMetadata());
+        assertEquals("測試書籍", record.getNcxTitle());
+        assertNull(record.getNcxAuthor());
+        assertEquals(43, record.getNavPointCount());
+        assertEquals(2, record.getMediaTypes().get("application/xhtml+xml").getEntries());
+        assertEquals(3000, record.getTextBytes());
+        assertEquals(300, record.getMediaTypes().get("image/png").getBytes());
+        assertEquals("Not an EPUB file", records.get(1).getError());
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChapterSchedulerTest {
+    @Test
+    void testFailureSkipsRemainingTasks() throws Exception {
+        ForkJoinPool pool = Workers.newPool(1);
+        try {
+            AtomicInteger runs = new AtomicInteger();
+            ChapterScheduler scheduler = new ChapterScheduler(pool);
+            scheduler.submit(() -> {
+                runs.incrementAndGet();
+                throw new IOException("broken chapter");
+            });
+            for (int i = 0; i < 10; ++i) {
+                scheduler.submit(runs::incrementAndGet);
+            }
+            ExecutionException e = assertThrows(ExecutionException.class, scheduler::await);
+            assertEquals("broken chapter", e.getCause().getMessage());
+            assertEquals(1, runs.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void testAwait() throws Exception {
+        ForkJoinPool pool = Workers.newPool(2);
+        try {
+            AtomicInteger runs = new AtomicInteger();
+            ChapterScheduler scheduler = new ChapterScheduler(pool);
+            for (int i = 0; i < 10; ++i) {
+                scheduler.submit(runs::incrementAndGet);
+            }
+            scheduler.await();
+            assertEquals(10, runs.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
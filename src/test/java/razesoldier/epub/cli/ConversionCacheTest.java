@@ -0,0 +1,137 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+package razesoldier.epub.cli;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import razesoldier.epub.hant2hans.VariantConverter;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConversionCacheTest {
+    private static final String TRADITIONAL = "他說這本書是國王的。";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testHit() throws Exception {
+        Path book = tempDir.resolve("book.epub");
+        TestBooks.write(book, "zh-TW", "書", StandardCharsets.UTF_8, TRADITIONAL, "unchanged");
+        ConversionCache first = new ConversionCache(tempDir.resolve("cache"), Long.MAX_VALUE);
+        convert(TestBooks.versioned("1"), first, book, tempDir.resolve("first.epub"));
+        assertEquals(0, first.getHits());
+        assertTrue(first.getMisses() > 0);
+
+        ConversionCache second = new ConversionCache(tempDir.resolve("cache"), Long.MAX_VALUE);
+        BookConverter converter = convert(TestBooks.versioned("1"), second, book, tempDir.resolve("second.epub"));
+        assertEquals(first.getMisses(), second.getHits());
+        assertEquals(0, second.getMisses());
+        // The unchanged chapter is restored as such
+        assertTrue(converter.getSkippedEntries() > 0);
+        assertEquals(readEntries(tempDir.resolve("first.epub")), readEntries(tempDir.resolve("second.epub")));
+    }
+
+    @Test
+    void testMissAfterVersionChange() throws Exception {
+        Path book = tempDir.resolve("book.epub");
+        TestBooks.write(book, "zh-TW", "書", StandardCharsets.UTF_8, TRADITIONAL);
+        convert(TestBooks.versioned("1"), new ConversionCache(tempDir.resolve("cache"), Long.MAX_VALUE), book,
+                tempDir.resolve("first.epub"));
+
+        ConversionCache cache = new ConversionCache(tempDir.resolve("cache"), Long.MAX_VALUE);
+        convert(TestBooks.versioned("2"), cache, book, tempDir.resolve("second.epub"));
+        assertEquals(0, cache.getHits());
+        assertTrue(cache.getMisses() > 0);
+    }
+
+    @Test
+    void testUnknownVersionIsNotCached() throws Exception {
+        Path book = tempDir.resolve("book.epub");
+        TestBooks.write(book, "zh-TW", "書", StandardCharsets.UTF_8, TRADITIONAL);
+        ConversionCache cache = new ConversionCache(tempDir.resolve("cache"), Long.MAX_VALUE);
+        BookConverter converter = convert(TestBooks.CONVERTER, cache, book, tempDir.resolve("out.epub"));
+        assertTrue(converter.isCacheBypassed());
+        assertEquals(0, cache.getHits() + cache.getMisses());
+        assertFalse(Files.exists(tempDir.resolve("cache")));
+    }
+
+    @Test
+    void testTrimByModificationTime() throws Exception {
+        Path directory = tempDir.resolve("cache");
+        // Every record of an unchanged entry is a 32 byte header, two of them fit
+        ConversionCache cache = new ConversionCache(directory, 64);
+        String[] keys = {"aa01", "bb02", "cc03"};
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < keys.length; ++i) {
+            try (ConversionCache.Record record = cache.newRecord(keys[i])) {
+                record.commit(null);
+            }
+            Files.setLastModifiedTime(getPath(directory, keys[i]), FileTime.fromMillis(now - (3 - i) * 60_000));
+        }
+        // The first record was used last
+        Files.setLastModifiedTime(getPath(directory, keys[0]), FileTime.fromMillis(now));
+        cache.trim();
+        assertTrue(Files.exists(getPath(directory, keys[0])));
+        assertFalse(Files.exists(getPath(directory, keys[1])));
+        assertTrue(Files.exists(getPath(directory, keys[2])));
+    }
+
+    /**
+     * The content of every entry, the time of the entries differs between runs.
+     */
+    private static Map<String, String> readEntries(Path book) throws Exception {
+        Map<String, String> entries = new HashMap<>();
+        try (ZipFile zipFile = new ZipFile(book.toFile())) {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                try (InputStream is = zipFile.getInputStream(entry)) {
+                    entries.put(entry.getName(), new String(is.readAllBytes(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static Path getPath(Path directory, String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private static BookConverter convert(VariantConverter variantConverter, ConversionCache cache, Path src,
+                                         Path dst) throws Exception {
+        ExecutorService pool = Workers.newPool(2);
+        try {
+            BookConverter converter = new BookConverter(variantConverter, pool);
+            converter.setCache(cache);
+            assertNull(converter.convert(src, dst));
+            return converter;
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
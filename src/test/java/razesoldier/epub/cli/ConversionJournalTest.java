@@ -0,0 +1,170 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+package razesoldier.epub.cli;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import razesoldier.epub.reader.EPUBReader;
+import razesoldier.epub.reader.EPUBWriter;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConversionJournalTest {
+    private static final String CHAPTER = "OEBPS/c0.xhtml";
+    private static final String TRADITIONAL = "他說這本書是國王的。";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testRestoreCommittedRecord() throws Exception {
+        Path book = writeBook(TRADITIONAL);
+        ConversionJournal journal = new ConversionJournal(tempDir.resolve("out.epub.journal"));
+        record(journal, book, "v1", "converted");
+        assertEquals(ConversionCache.Restored.CONVERTED, restore(journal, book, "v1"));
+        assertEquals("converted", readChapter(tempDir.resolve("restored.epub")));
+    }
+
+    @Test
+    void testRestoreUnchangedRecord() throws Exception {
+        Path book = writeBook(TRADITIONAL);
+        ConversionJournal journal = new ConversionJournal(tempDir.resolve("out.epub.journal"));
+        record(journal, book, "v1", null);
+        assertEquals(ConversionCache.Restored.UNCHANGED, restore(journal, book, "v1"));
+        // The source entry is copied
+        assertEquals(readChapter(book), readChapter(tempDir.resolve("restored.epub")));
+    }
+
+    @Test
+    void testChangedEntryIsRejected() throws Exception {
+        Path book = writeBook(TRADITIONAL);
+        ConversionJournal journal = new ConversionJournal(tempDir.resolve("out.epub.journal"));
+        record(journal, book, "v1", "converted");
+        // Same length, so only the content differs
+        writeBook("她說這本書是國王的。");
+        assertEquals(ConversionCache.Restored.MISSING, restore(journal, book, "v1"));
+    }
+
+    @Test
+    void testChangedVersionIsRejected() throws Exception {
+        Path book = writeBook(TRADITIONAL);
+        ConversionJournal journal = new ConversionJournal(tempDir.resolve("out.epub.journal"));
+        record(journal, book, "v1", "converted");
+        assertEquals(ConversionCache.Restored.MISSING, restore(journal, book, "v2"));
+    }
+
+    @Test
+    void testUncommittedRecordIsIgnored() throws Exception {
+        Path book = writeBook(TRADITIONAL);
+        Path directory = tempDir.resolve("out.epub.journal");
+        ConversionJournal journal = new ConversionJournal(directory);
+        try (EPUBReader reader = new EPUBReader(book.toString(), EPUBReader.OpenMode.LAZY)) {
+            ConversionJournal.Record record = journal.newRecord(reader, CHAPTER, reader.getEntry(CHAPTER), "v1");
+            // A run killed while the entry was written leaves the temporary file
+            record.getChannel().write(ByteBuffer.wrap(new byte[100]));
+            assertEquals(1, countFiles(directory));
+            assertEquals(ConversionCache.Restored.MISSING, restore(journal, book, "v1"));
+            record.getChannel().close();
+        }
+
+        // The next run ignores the file and deletes it with the journal
+        ExecutorService pool = Workers.newPool(2);
+        try {
+            BookConverter converter = new BookConverter(TestBooks.versioned("1"), pool);
+            converter.setJournaled(true);
+            assertNull(converter.convert(book, tempDir.resolve("out.epub")));
+            assertEquals(0, converter.getRestoredEntries());
+        } finally {
+            pool.shutdown();
+        }
+        assertFalse(Files.exists(directory));
+        assertTrue(readChapter(tempDir.resolve("out.epub")).contains("他说這本书是国王的。"));
+    }
+
+    @Test
+    void testJournalIsDeletedAfterBook() throws Exception {
+        Path book = writeBook(TRADITIONAL);
+        ExecutorService pool = Workers.newPool(2);
+        try {
+            BookConverter converter = new BookConverter(TestBooks.versioned("1"), pool);
+            converter.setJournaled(true);
+            assertNull(converter.convert(book, tempDir.resolve("out.epub")));
+        } finally {
+            pool.shutdown();
+        }
+        assertFalse(Files.exists(ConversionJournal.getDirectory(tempDir.resolve("out.epub"))));
+    }
+
+    private Path writeBook(String text) throws Exception {
+        Path book = tempDir.resolve("book.epub");
+        TestBooks.write(book, "zh-TW", "書", StandardCharsets.UTF_8, text);
+        return book;
+    }
+
+    /**
+     * Record the chapter of the book as the given text, or as unchanged if it is null.
+     */
+    private void record(ConversionJournal journal, Path book, String version, String text) throws Exception {
+        try (EPUBReader reader = new EPUBReader(book.toString(), EPUBReader.OpenMode.LAZY);
+             EPUBWriter writer = new EPUBWriter(tempDir.resolve("out.epub"));
+             ConversionJournal.Record record = journal.newRecord(reader, CHAPTER, reader.getEntry(CHAPTER),
+                     version)) {
+            if (text == null) {
+                record.commit(null);
+                return;
+            }
+            EPUBWriter.EntryOutputStream os = writer.newEntry(CHAPTER);
+            os.addCopy(record.getChannel());
+            os.write(text.getBytes(StandardCharsets.UTF_8));
+            os.close();
+            record.commit(os);
+        }
+    }
+
+    private ConversionCache.Restored restore(ConversionJournal journal, Path book, String version)
+            throws Exception {
+        try (EPUBReader reader = new EPUBReader(book.toString(), EPUBReader.OpenMode.LAZY);
+             EPUBWriter writer = new EPUBWriter(tempDir.resolve("restored.epub"))) {
+            return journal.restore(reader, writer, CHAPTER, version);
+        }
+    }
+
+    /**
+     * A restored book only has the chapter, it is read as a plain archive.
+     */
+    private static String readChapter(Path book) throws Exception {
+        try (ZipFile zipFile = new ZipFile(book.toFile());
+             InputStream is = zipFile.getInputStream(zipFile.getEntry(CHAPTER))) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static long countFiles(Path directory) throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoryBudgetTest {
+    @Test
+    void testAcquireWaitsForRelease() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        long first = budget.acquire(60);
+        assertEquals(60, first);
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        AtomicLong second = new AtomicLong();
+        Thread thread = new Thread(() -> {
+            try {
+                second.set(budget.acquire(60));
+                acquired.countDown();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        thread.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        budget.release(first);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertEquals(60, second.get());
+        assertEquals(60, budget.getPeak());
+        budget.release(second.get());
+    }
+
+    @Test
+    void testLargeRequestIsReduced() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        assertEquals(100, budget.acquire(1000));
+        budget.release(100);
+        assertEquals(100, budget.getPeak());
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RunReportTest {
+    @Test
+    void testQuote() {
+        assertEquals("\"a\\\"b\\\\c\\u000a書\"", RunReport.quote("a\"b\\c\n書"));
+    }
+
+    @Test
+    void testEntryTimer() throws Exception {
+        RunReport.EntryTimer timer = new RunReport.EntryTimer();
+        try (InputStream is = timer.wrap(new ByteArrayInputStream(new byte[1000]));
+             OutputStream os = timer.wrap(new ByteArrayOutputStream())) {
+            is.transferTo(os);
+        }
+        assertEquals("書", timer.wrap(source -> source.replace('書', '书')).convert("書").replace('书', '書'));
+
+        RunReport report = new RunReport();
+        report.setKeepEntries(true);
+        report.addEntry("a.epub", "OEBPS/\"1\".xhtml", timer, 2_000_000);
+        report.addBook("a.epub", 3_000_000, "ok");
+        Path path = Files.createTempFile("report", ".json");
+        try {
+            report.writeJson(path);
+            String json = Files.readString(path, StandardCharsets.UTF_8);
+            assertTrue(json.contains("\"read\": {\"millis\": "));
+            assertTrue(json.contains("\"count\": 1, \"bytes\": 1000, \"chars\": 0}"));
+            assertTrue(json.contains("\"entry\": \"OEBPS/\\\"1\\\".xhtml\", \"bytes\": 1000, \"chars\": 1, "
+                    + "\"millis\": 2.000"));
+            assertTrue(json.contains("\"entryPercentiles\": {\"p50\": 2.000, \"p90\": 2.000, \"p99\": 2.000, "
+                    + "\"max\": 2.000}"));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testEntriesAreKeptForReportOnly() throws Exception {
+        RunReport report = new RunReport();
+        report.addEntry("a.epub", "OEBPS/1.xhtml", new RunReport.EntryTimer(), 2_000_000);
+        Path path = Files.createTempFile("report", ".json");
+        try {
+            report.writeJson(path);
+            String json = Files.readString(path, StandardCharsets.UTF_8);
+            assertTrue(json.contains("\"entries\": [\n  ]"), json);
+            // The percentiles are kept anyway
+            assertTrue(json.contains("\"entryPercentiles\": {\"p50\": 2.000"), json);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testHistogram() {
+        RunReport.Histogram histogram = new RunReport.Histogram();
+        for (long i = 1; i <= 1000; ++i) {
+            histogram.add(i * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMax());
+        assertEquals(1_000_000, histogram.percentile(100));
+        // Within a bucket, which is 1/16 wide
+        long p50 = histogram.percentile(50);
+        assertTrue(p50 >= 500_000 && p50 <= 500_000 + 500_000 / 16, String.valueOf(p50));
+        long p99 = histogram.percentile(99);
+        assertTrue(p99 >= 990_000 && p99 <= 1_000_000, String.valueOf(p99));
+
+        histogram = new RunReport.Histogram();
+        histogram.add(0);
+        histogram.add(5);
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(5, histogram.percentile(90));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import razesoldier.epub.reader.EPUBReader;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScriptDetectorTest {
+    private static final String TRADITIONAL = "他說這本書是國王的。";
+    private static final String SIMPLIFIED = "他说这本书是国王的。";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testNonChineseBookIsSkipped() throws Exception {
+        String reason = check("en", "A Book", StandardCharsets.UTF_8, TRADITIONAL);
+        assertNotNull(reason);
+        assertTrue(reason.startsWith("not a Chinese book"), reason);
+    }
+
+    @Test
+    void testSimplifiedBookIsSkipped() throws Exception {
+        String reason = check("zh-CN", "书", StandardCharsets.UTF_8, SIMPLIFIED, SIMPLIFIED);
+        assertNotNull(reason);
+        assertTrue(reason.contains("traditional characters"), reason);
+    }
+
+    @Test
+    void testTraditionalBookIsKept() throws Exception {
+        assertNull(check("zh-TW", "書", StandardCharsets.UTF_8, TRADITIONAL, SIMPLIFIED));
+        // Without dc:language the book is sampled
+        assertNull(check(null, "A Book", StandardCharsets.UTF_8, TRADITIONAL));
+    }
+
+    @Test
+    void testUtf16BookIsKept() throws Exception {
+        assertNull(check("zh-TW", "書", StandardCharsets.UTF_16LE, TRADITIONAL));
+        assertNull(check("zh-TW", "書", StandardCharsets.UTF_16BE, TRADITIONAL));
+    }
+
+    private String check(String language, String title, Charset charset, String... texts) throws Exception {
+        Path book = tempDir.resolve("book.epub");
+        TestBooks.write(book, language, title, charset, texts);
+        ScriptDetector detector = new ScriptDetector(CompletableFuture.completedFuture(TestBooks.CONVERTER), 0.05);
+        try (EPUBReader reader = new EPUBReader(book.toString(), EPUBReader.OpenMode.LAZY)) {
+            return detector.check(reader);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import razesoldier.epub.hant2hans.VariantConverter;
+import razesoldier.epub.reader.EPUBWriter;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+/**
+ * Writes small books for the tests of the commands.
+ */
+class TestBooks {
+    /**
+     * A converter that simplifies a few characters.
+     */
+    static final VariantConverter CONVERTER = text -> text.replace('書', '书').replace('說', '说').replace('國', '国');
+
+    private TestBooks() {
+    }
+
+    /**
+     * @return A converter like {@link #CONVERTER} with a known version
+     */
+    static VariantConverter versioned(String version) {
+        return new VariantConverter() {
+            public String convert(String text) {
+                return CONVERTER.convert(text);
+            }
+
+            public String getVersion() {
+                return version;
+            }
+
+            public boolean isVersionKnown() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Write a book with a chapter per text, chapter i is OEBPS/c{i}.xhtml.
+     *
+     * @param language The dc:language of the book, or null to leave it out
+     * @param charset  The encoding of the chapters
+     */
+    static void write(Path path, String language, String title, Charset charset, String... texts)
+            throws IOException {
+        try (EPUBWriter writer = new EPUBWriter(path)) {
+            writer.writeFile("META-INF/container.xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<container version=\"1.0\" xmlns=\"urn:oasis:names:tc:opendocument:xmlns:container\">"
+                    + "<rootfiles><rootfile full-path=\"OEBPS/content.opf\" "
+                    + "media-type=\"application/oebps-package+xml\"/></rootfiles></container>");
+            StringBuilder opf = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                    .append("<package xmlns=\"http://www.idpf.org/2007/opf\" version=\"2.0\">")
+                    .append("<metadata xmlns:dc=\"http://purl.org/dc/elements/1.1/\"><dc:title>").append(title)
+                    .append("</dc:title>");
+            if (language != null) {
+                opf.append("<dc:language>").append(language).append("</dc:language>");
+            }
+            opf.append("</metadata><manifest>")
+                    .append("<item id=\"ncx\" href=\"toc.ncx\" media-type=\"application/x-dtbncx+xml\"/>");
+            for (int i = 0; i < texts.length; ++i) {
+                opf.append("<item id=\"c").append(i).append("\" href=\"c").append(i)
+                        .append(".xhtml\" media-type=\"application/xhtml+xml\"/>");
+            }
+            opf.append("</manifest><spine toc=\"ncx\">");
+            for (int i = 0; i < texts.length; ++i) {
+                opf.append("<itemref idref=\"c").append(i).append("\"/>");
+            }
+            writer.writeFile("OEBPS/content.opf", opf.append("</spine></package>").toString());
+            writer.writeFile("OEBPS/toc.ncx", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<ncx xmlns=\"http://www.daisy.org/z3986/2005/ncx/\" version=\"2005-1\"><head/>"
+                    + "<docTitle><text>" + title + "</text></docTitle><navMap/></ncx>");
+            for (int i = 0; i < texts.length; ++i) {
+                String chapter = "<?xml version=\"1.0\" encoding=\"" + charset.name() + "\"?>\n"
+                        + "<html xmlns=\"http://www.w3.org/1999/xhtml\"><head><title>" + i + "</title></head>"
+                        + "<body><p>" + texts[i] + "</p></body></html>";
+                // UTF-16 chapters start with a byte order mark
+                String bom = charset.name().startsWith("UTF-16") ? "\uFEFF" : "";
+                writer.writeFile("OEBPS/c" + i + ".xhtml", (bom + chapter).getBytes(charset));
+            }
+        }
+    }
+}
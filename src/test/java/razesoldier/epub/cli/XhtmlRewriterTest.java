@@ -0,0 +1,105 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.cli;
+
+import org.junit.jupiter.api.Test;
+import razesoldier.epub.hant2hans.VariantConverter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.CharConversionException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XhtmlRewriterTest {
+    private static final VariantConverter CONVERTER = text -> text.replace('書', '书').replace('說', '说');
+
+    @Test
+    void testMarkupIsKept() throws IOException {
+        String source = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                + "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.1//EN\" \"http://www.w3.org/TR/xhtml11/DTD/xhtml11.dtd\">\n"
+                + "<html xmlns=\"http://www.w3.org/1999/xhtml\"><head><title>書</title>"
+                + "<style type=\"text/css\">p::before { content: \"書\"; }</style></head>\n"
+                + "<body><!-- 書 --><p class='a>b' title=\"書\">他說：<ruby>書<rt>shū</rt></ruby>&#x66F8;</p>"
+                + "<script><![CDATA[ var s = \"書\"; ]]></script><br/></body></html>";
+        String expected = source.replace("<title>書", "<title>书").replace("\">他說", "\">他说")
+                .replace("<ruby>書", "<ruby>书");
+        assertEquals(expected, rewrite(source, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testUnchanged() throws IOException {
+        String source = "<html><body><p>Chapter 1</p><p>这本书</p></body></html>";
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        XhtmlRewriter rewriter = new XhtmlRewriter(CONVERTER);
+        assertFalse(rewriter.rewrite(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)), os));
+        assertEquals(source, os.toString(StandardCharsets.UTF_8));
+        rewriter = new XhtmlRewriter(CONVERTER);
+        assertTrue(rewriter.rewrite(new ByteArrayInputStream("<p>書</p>".getBytes(StandardCharsets.UTF_8)), os));
+    }
+
+    @Test
+    void testUtf16() throws IOException {
+        String source = "\uFEFF<?xml version=\"1.0\" encoding=\"utf-16\"?><p>說書</p>";
+        assertEquals("\uFEFF<?xml version=\"1.0\" encoding=\"utf-16\"?><p>说书</p>",
+                rewrite(source, StandardCharsets.UTF_16LE));
+    }
+
+    @Test
+    void testLongText() throws IOException {
+        String text = "他說了一本書。".repeat(XhtmlRewriter.WINDOW / 2);
+        String source = "<p>" + text + "</p>";
+        assertEquals("<p>" + text.replace('書', '书').replace('說', '说') + "</p>",
+                rewrite(source, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testNcx() throws IOException {
+        String source = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<ncx>\n  <docTitle>\n    <text>說書</text>\n  </docTitle>\n"
+                + "  <navMap>\n    <navPoint id=\"書\" playOrder=\"1\"><navLabel><text>第一章 說</text></navLabel>"
+                + "<content src=\"c1.xhtml\"/></navPoint>\n    <meta name=\"說\"/>書\n  </navMap>\n</ncx>";
+        String expected = source.replace("<text>說書", "<text>说书").replace("<text>第一章 說", "<text>第一章 说");
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        XhtmlRewriter.forNcx(CONVERTER).rewrite(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)), os);
+        assertEquals(expected, os.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testDeclaredEncoding() throws IOException {
+        // The simplified characters are not in Big5
+        String source = "<?xml version=\"1.0\" encoding=\"Big5\"?>\n<p title=\"說\">他說書</p>";
+        assertEquals("<?xml version=\"1.0\" encoding=\"Big5\"?>\n<p title=\"說\">他&#x8BF4;&#x4E66;</p>",
+                rewrite(source, Charset.forName("Big5")));
+    }
+
+    @Test
+    void testMalformedInput() {
+        byte[] source = {'<', 'p', '>', (byte) 0xE6, (byte) 0x9B, '<', '/', 'p', '>'};
+        assertThrows(CharConversionException.class, () -> new XhtmlRewriter(CONVERTER)
+                .rewrite(new ByteArrayInputStream(source), new ByteArrayOutputStream()));
+    }
+
+    private static String rewrite(String source, Charset charset) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new XhtmlRewriter(CONVERTER).rewrite(new ByteArrayInputStream(source.getBytes(charset)), os);
+        return os.toString(charset);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.hant2hans;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingConverterTest {
+    @Test
+    void testCache() {
+        AtomicInteger calls = new AtomicInteger();
+        CachingConverter converter = new CachingConverter(source -> {
+            calls.incrementAndGet();
+            return source.replace('書', '书');
+        }, 16 * 1024);
+
+        assertEquals("一本书", converter.convert("一本書"));
+        assertEquals("一本书", converter.convert("一本書"));
+        assertEquals(1, calls.get());
+        assertEquals(1, converter.getHits());
+        assertEquals(1, converter.getMisses());
+        assertEquals(6, converter.getCachedChars());
+    }
+
+    @Test
+    void testConvertAll() {
+        AtomicInteger batches = new AtomicInteger();
+        VariantConverter delegate = new VariantConverter() {
+            public String convert(String source) {
+                return source.replace('書', '书');
+            }
+
+            public List<String> convertAll(List<String> sources) {
+                batches.incrementAndGet();
+                return VariantConverter.super.convertAll(sources);
+            }
+        };
+        CachingConverter converter = new CachingConverter(delegate, 16 * 1024);
+        assertEquals("一本书", converter.convert("一本書"));
+
+        List<String> sources = List.of("一本書", "兩本書", "一本書");
+        assertEquals(List.of("一本书", "兩本书", "一本书"), converter.convertAll(sources));
+        assertEquals(1, batches.get());
+        assertEquals(2, converter.getHits());
+        assertEquals(2, converter.getMisses());
+    }
+
+    @Test
+    void testEviction() {
+        CachingConverter converter = new CachingConverter(source -> source, 16 * 1024);
+        // Unchanged strings count their chars once, so it takes twice as many of them to fill the cache
+        for (int i = 0; i < 6000; ++i) {
+            converter.convert("第" + i + "章");
+        }
+        assertTrue(converter.getCachedChars() <= 16 * 1024);
+        assertEquals(6000, converter.getMisses());
+        // The most recent string is still cached, the first ones were evicted
+        converter.convert("第5999章");
+        assertEquals(1, converter.getHits());
+        converter.convert("第0章");
+        assertEquals(6001, converter.getMisses());
+    }
+
+    @Test
+    void testUnchangedTextIsCountedOnce() {
+        CachingConverter converter = new CachingConverter(source -> source, 16 * 1024);
+        converter.convert("第1章");
+        assertEquals(3, converter.getCachedChars());
+        converter = new CachingConverter(String::new, 16 * 1024);
+        converter.convert("第1章");
+        assertEquals(3, converter.getCachedChars());
+        converter = new CachingConverter(source -> source.replace('第', '弟'), 16 * 1024);
+        converter.convert("第1章");
+        assertEquals(6, converter.getCachedChars());
+    }
+
+    @Test
+    void testPutAgainIsCountedOnce() {
+        // Both texts miss in the same batch, so the second one puts the key again
+        CachingConverter converter = new CachingConverter(source -> source, 16 * 1024);
+        converter.convertAll(List.of("第1章", new String("第1章")));
+        assertEquals(3, converter.getCachedChars());
+        converter = new CachingConverter(source -> source.replace('第', '弟'), 16 * 1024);
+        converter.convertAll(List.of("第1章", new String("第1章")));
+        assertEquals(6, converter.getCachedChars());
+        assertEquals(2, converter.getMisses());
+        // A later lookup hits the entry that was put last
+        assertEquals("弟1章", converter.convert("第1章"));
+        assertEquals(1, converter.getHits());
+        assertEquals(6, converter.getCachedChars());
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.hant2hans;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConvertibleCharsTest {
+    @Test
+    void testHan() {
+        assertFalse(ConvertibleChars.HAN.containsAny("Chapter 1: \"Hello\", ABC 123 ..."));
+        assertTrue(ConvertibleChars.HAN.containsAny("Chapter 1: 開始"));
+        assertEquals(11, ConvertibleChars.HAN.indexIn("Chapter 1: 開始", 0, 13));
+        assertTrue(ConvertibleChars.HAN.containsAny("𠀀"));
+        assertTrue(ConvertibleChars.ALL.containsAny("a"));
+    }
+
+    @Test
+    void testBuilder() {
+        ConvertibleChars chars = new ConvertibleChars.Builder().addAll("書國").add('￿').build();
+        assertTrue(chars.contains('書'));
+        assertTrue(chars.contains('￿'));
+        assertFalse(chars.contains('书'));
+        assertEquals(-1, chars.indexIn("一本书", 0, 3));
+        assertEquals(2, chars.indexIn("一本書", 0, 3));
+    }
+
+    @Test
+    void testSkipUnconvertible() {
+        ConvertibleChars chars = new ConvertibleChars.Builder().add('書').build();
+        CachingConverter converter = new CachingConverter(new VariantConverter() {
+            public String convert(String source) {
+                return source.replace('書', '书');
+            }
+
+            public ConvertibleChars convertibleChars() {
+                return chars;
+            }
+        }, 16 * 1024);
+        String text = "no Chinese here";
+        assertSame(text, converter.convert(text));
+        assertEquals(0, converter.getMisses());
+        assertEquals("一本书", converter.convert("一本書"));
+        assertEquals(1, converter.getMisses());
+    }
+}
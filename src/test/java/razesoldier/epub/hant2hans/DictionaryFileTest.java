@@ -0,0 +1,92 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.hant2hans;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DictionaryFileTest {
+    @Test
+    void testCompileAndMap(@TempDir Path tempDir) throws Exception {
+        Path phrases = tempDir.resolve("TSPhrases.txt");
+        Files.writeString(phrases, "頭髮\t头发\n乾隆\t乾隆\n穿著\t穿着\n");
+        Path characters = tempDir.resolve("TSCharacters.txt");
+        Files.writeString(characters, "書\t书\n頭\t头\n髮\t发 髪\n乾\t干 乾\n");
+        Path dictionary = tempDir.resolve("t2s.dict");
+
+        TrieConverter compiled = DictionaryFile.compile(List.of(phrases, characters), dictionary);
+        assertTrue(DictionaryFile.isDictionaryFile(dictionary));
+        assertFalse(DictionaryFile.isDictionaryFile(phrases));
+
+        TrieConverter mapped = DictionaryFile.map(dictionary);
+        assertEquals(compiled.getVersion(), mapped.getVersion());
+        assertTrue(mapped.getVersion().startsWith("sha256:"));
+        for (String text : List.of("頭髮和書", "乾杯，乾隆", "穿著", "no change")) {
+            assertEquals(compiled.convert(text), mapped.convert(text));
+        }
+        assertEquals("头发和书", mapped.convert("頭髮和書"));
+        assertTrue(mapped.convertibleChars().contains('著'));
+        assertFalse(mapped.convertibleChars().contains('隆'));
+    }
+
+    @Test
+    void testCorrupted(@TempDir Path tempDir) throws Exception {
+        Path characters = tempDir.resolve("TSCharacters.txt");
+        Files.writeString(characters, "書\t书\n頭\t头\n");
+        Path dictionary = tempDir.resolve("t2s.dict");
+        DictionaryFile.compile(List.of(characters), dictionary);
+        byte[] bytes = Files.readAllBytes(dictionary);
+
+        Path truncated = tempDir.resolve("truncated.dict");
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 2));
+        assertThrows(IOException.class, () -> DictionaryFile.map(truncated));
+
+        // The last value offset points past the value chars
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int valueCount = buffer.getInt(12);
+        buffer.putInt(24 + 1024 * 8 + buffer.getInt(8) * 8 + valueCount * 4, Integer.MAX_VALUE);
+        Path corrupted = tempDir.resolve("corrupted.dict");
+        Files.write(corrupted, bytes);
+        assertThrows(IOException.class, () -> DictionaryFile.map(corrupted));
+
+        // The parent of a state is outside of the trie, only a full check reads it
+        bytes = Files.readAllBytes(dictionary);
+        buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int size = buffer.getInt(8);
+        int checkOffset = 24 + 1024 * 8 + size * 4;
+        int state = 1;
+        while (buffer.getInt(checkOffset + state * 4) == 0) {
+            ++state;
+        }
+        buffer.putInt(checkOffset + state * 4, size + 1);
+        Files.write(corrupted, bytes);
+        DictionaryFile.map(corrupted);
+        assertThrows(IOException.class, () -> DictionaryFile.verify(corrupted));
+        DictionaryFile.verify(dictionary);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.hant2hans;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrieConverterTest {
+    private static final String TABLE = "# test\n"
+            + "書\t书\n"
+            + "頭\t头\n"
+            + "髮\t发 髪\n"
+            + "頭髮\t头发\n"
+            + "乾\t干 乾\n"
+            + "乾隆\t乾隆\n"
+            + "穿著\t穿着\n"
+            + "𠀾\t𠀾x\n";
+
+    @Test
+    void testConvert() throws Exception {
+        Map<String, String> dictionary = new TreeMap<>();
+        TrieConverter.readTable(new BufferedReader(new StringReader(TABLE)), dictionary);
+        TrieConverter converter = TrieConverter.build(dictionary, "test");
+
+        assertEquals("一本书", converter.convert("一本書"));
+        assertEquals("头发很長", converter.convert("頭髮很長"));
+        assertEquals("干杯，乾隆", converter.convert("乾杯，乾隆"));
+        assertEquals("穿着", converter.convert("穿著"));
+        assertEquals("a𠀾xb", converter.convert("a𠀾b"));
+        String unchanged = "著名的乾隆";
+        assertSame(unchanged, converter.convert(unchanged));
+        assertTrue(converter.convertibleChars().contains('著'));
+        assertFalse(converter.convertibleChars().contains('隆'));
+    }
+
+    @Test
+    void testConvertAll() throws Exception {
+        Map<String, String> dictionary = new TreeMap<>();
+        TrieConverter.readTable(new BufferedReader(new StringReader(TABLE)), dictionary);
+        TrieConverter converter = TrieConverter.build(dictionary, "test");
+
+        String unchanged = "著名";
+        List<String> results = converter.convertAll(List.of("頭髮", unchanged, "一本書", "乾杯"));
+        assertEquals(List.of("头发", "著名", "一本书", "干杯"), results);
+        assertSame(unchanged, results.get(1));
+    }
+
+    @Test
+    void testConvertRange() throws Exception {
+        Map<String, String> dictionary = new TreeMap<>();
+        TrieConverter.readTable(new BufferedReader(new StringReader(TABLE)), dictionary);
+        TrieConverter converter = TrieConverter.build(dictionary, "test");
+        VariantConverter cached = new CachingConverter(converter, 16 * 1024);
+
+        StringBuilder text = new StringBuilder("<p>頭髮和書</p><p>乾隆</p>");
+        StringBuilder out = new StringBuilder();
+        converter.convert(text, 3, 7, out);
+        assertEquals("头发和书", out.toString());
+        out.setLength(0);
+        // The range is converted on its own, 頭 is not matched as a part of 頭髮
+        converter.convert(text, 3, 4, out);
+        cached.convert(text, 14, 16, out);
+        cached.convert(text, 0, 3, out);
+        assertEquals("头乾隆<p>", out.toString());
+    }
+
+    @Test
+    void testLongestMatch() {
+        // Compare the trie with a naive longest match on random keys over a small alphabet
+        Random random = new Random(42);
+        Map<String, String> dictionary = new TreeMap<>();
+        for (int i = 0; i < 2000; ++i) {
+            dictionary.put(randomString(random, 1 + random.nextInt(6)), Integer.toString(i));
+        }
+        DoubleArrayTrie trie = DoubleArrayTrie.build(new ArrayList<>(dictionary.keySet()));
+        List<String> values = new ArrayList<>(dictionary.values());
+
+        for (int i = 0; i < 2000; ++i) {
+            String text = randomString(random, 10);
+            for (int start = 0; start < text.length(); ++start) {
+                String expected = null;
+                for (int end = start + 1; end <= text.length(); ++end) {
+                    String value = dictionary.get(text.substring(start, end));
+                    if (value != null) {
+                        expected = (end - start) + ":" + value;
+                    }
+                }
+                long match = trie.match(text, start, text.length());
+                assertEquals(expected, match == -1 ? null : (match >>> 32) + ":" + values.get((int) match), text);
+            }
+        }
+    }
+
+    private static String randomString(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; ++i) {
+            chars[i] = "ab書頭髮乾￿".charAt(random.nextInt(7));
+        }
+        return new String(chars);
+    }
+}
@@ -20,8 +20,18 @@ package razesoldier.epub.reader;
 import org.junit.jupiter.api.Test;
 
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 class EPUBReaderTest {
     private EPUBReader ePubReader;
@@ -61,4 +71,131 @@ class EPUBReaderTest {
         assertEquals("The Seventy's Course in Theology (Third Year)\n" +
                 "The Doctrine of Deity", getReader().getBook().getNcx().getTitle());
     }
+
+    @Test
+    void testGetNavPoints() throws InitException, URISyntaxException {
+        EPUBBook.NCX ncx = getReader().getBook().getNcx();
+        assertEquals(5, ncx.getMetadata().size());
+        assertEquals("2", ncx.getMetadata().get("dtb:depth"));
+        // Only top level navPoints are collected
+        assertEquals(43, ncx.getNavPointMap().size());
+        EPUBBook.NCX.NavPoint navPoint = ncx.getNavPointMap().get("np-2");
+        assertEquals(2, navPoint.getOrder().intValue());
+        assertEquals("SEVENTY'S YEAR BOOK NO. III.", navPoint.getText());
+        assertEquals("@public@vhost@g@gutenberg@html@files@60575@60575-h@60575-h-0.htm.html#pgepubid00001",
+                navPoint.getContentRef());
+    }
+
+    @Test
+    void testGetManifests() throws InitException, URISyntaxException {
+        EPUBBook book = getReader().getBook();
+        assertEquals(15, book.getManifests().size());
+        assertEquals("application/x-dtbncx+xml", book.getManifests().get("ncx").getMediaType());
+        assertFalse(book.getSpines().getSpineList().isEmpty());
+    }
+
+    @Test
+    void testLazyOpen() throws Exception {
+        String filename = "The Seventy's Course in Theology, Third Year by B. H. Roberts.epub";
+        try (EPUBReader reader = new EPUBReader(getClass().getResource("/" + filename).toURI().getPath(),
+                EPUBReader.OpenMode.LAZY)) {
+            EPUBBook book = reader.getBook();
+            assertEquals("en", book.getLanguage());
+            assertEquals("B. H. Roberts", book.getMetadata().get("creator"));
+            assertEquals(15, book.getManifests().size());
+            assertEquals("/OEBPS/toc.ncx", book.getSpines().getSpineFilePath());
+            assertEquals(43, book.getNcx().getNavPointMap().size());
+        }
+    }
+
+    @Test
+    void testGetIndex() throws Exception {
+        ZipIndex index = getReader().getIndex();
+        assertEquals(18, index.getEntries().size());
+        ZipIndex.Entry mimetype = index.getEntry("mimetype");
+        assertNotNull(mimetype);
+        assertEquals(ZipEntry.STORED, mimetype.getMethod());
+        assertEquals(20, mimetype.getSize());
+        assertEquals(25698, index.getEntry("OEBPS/toc.ncx").getSize());
+        assertNull(index.getEntry("/OEBPS/toc.ncx"));
+    }
+
+    @Test
+    void testReadFile() throws Exception {
+        EPUBReader reader = getReader();
+        assertSame(reader.getIndex().getEntry("OEBPS/toc.ncx"), reader.getEntry("/OEBPS/./toc.ncx"));
+        assertEquals(25698, reader.readFileWithStream("/OEBPS/toc.ncx").readAllBytes().length);
+        assertTrue(reader.readFile("mimetype").contains("application/epub+zip"));
+        assertThrows(ZipEntryNotFoundException.class, () -> reader.readFile("OEBPS/missing.html"));
+    }
+
+    @Test
+    void testCorruptCentralDirectory() throws Exception {
+        String filename = "The Seventy's Course in Theology, Third Year by B. H. Roberts.epub";
+        byte[] bytes = Files.readAllBytes(Paths.get(getClass().getResource("/" + filename).toURI()));
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int end = bytes.length - 22;
+        while (buffer.getInt(end) != 0x06054b50) {
+            --end;
+        }
+        // The name of the last entry runs past the end of the central directory
+        int last = end - 1;
+        while (buffer.getInt(last) != 0x02014b50) {
+            --last;
+        }
+        buffer.putShort(last + 28, (short) 0xFFFF);
+        Path path = Files.createTempFile("corrupt", ".epub");
+        try {
+            Files.write(path, bytes);
+            try (FileChannel channel = FileChannel.open(path)) {
+                assertThrows(ZipException.class, () -> ZipIndex.read(channel));
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testCorruptEntry() throws Exception {
+        String filename = "The Seventy's Course in Theology, Third Year by B. H. Roberts.epub";
+        byte[] bytes = Files.readAllBytes(Paths.get(getClass().getResource("/" + filename).toURI()));
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int css = findCentralRecord(buffer, "OEBPS/pgepub.css");
+        int longer = findCentralRecord(buffer, "OEBPS/0.css");
+        int shorter = findCentralRecord(buffer, "OEBPS/1.css");
+        // The CRC or the size of these entries no longer match their data
+        buffer.putInt(css + 16, buffer.getInt(css + 16) ^ 1);
+        buffer.putInt(longer + 24, buffer.getInt(longer + 24) - 1);
+        buffer.putInt(shorter + 24, buffer.getInt(shorter + 24) + 1);
+        Path path = Files.createTempFile("corrupt", ".epub");
+        try {
+            Files.write(path, bytes);
+            try (EPUBReader reader = new EPUBReader(path.toString(), EPUBReader.OpenMode.LAZY)) {
+                ZipException e = assertThrows(ZipException.class,
+                        () -> reader.readFileWithStream("OEBPS/pgepub.css").readAllBytes());
+                assertTrue(e.getMessage().contains("CRC"), e.getMessage());
+                assertThrows(ZipException.class, () -> reader.readFileWithStream("OEBPS/0.css").readAllBytes());
+                assertThrows(ZipException.class, () -> reader.readFileWithStream("OEBPS/1.css").readAllBytes());
+                // The other entries are fine
+                assertEquals(getReader().readFile("OEBPS/toc.ncx"), reader.readFile("OEBPS/toc.ncx"));
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * @return The offset of the central directory record of the entry
+     */
+    private static int findCentralRecord(ByteBuffer buffer, String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        for (int i = buffer.limit() - 46; i >= 0; --i) {
+            if (buffer.getInt(i) == 0x02014b50 && buffer.getShort(i + 28) == nameBytes.length
+                    && Arrays.equals(Arrays.copyOfRange(buffer.array(), i + 46, i + 46 + nameBytes.length),
+                    nameBytes)) {
+                return i;
+            }
+        }
+        throw new AssertionError(name);
+    }
 }
@@ -0,0 +1,95 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package razesoldier.epub.reader;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EPUBWriterTest {
+    private static final String FILENAME = "The Seventy's Course in Theology, Third Year by B. H. Roberts.epub";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testCopyBook() throws Exception {
+        String srcPath = getClass().getResource("/" + FILENAME).toURI().getPath();
+        Path dst = tempDir.resolve("copy.epub");
+        try (EPUBReader reader = new EPUBReader(srcPath); EPUBWriter writer = new EPUBWriter(dst)) {
+            writer.writeFile("OEBPS/wrap0000.html", "<html>書</html>");
+            for (String entry : reader.getEntryNames()) {
+                if (!entry.equals("mimetype") && !entry.equals("OEBPS/wrap0000.html")) {
+                    writer.copyFile(reader, entry);
+                }
+            }
+        }
+
+        try (ZipFile src = new ZipFile(srcPath); ZipFile copy = new ZipFile(dst.toFile())) {
+            ZipEntry first = copy.entries().nextElement();
+            assertEquals("mimetype", first.getName());
+            assertEquals(ZipEntry.STORED, first.getMethod());
+            assertEquals(src.size(), copy.size());
+            assertEquals("<html>書</html>", new String(copy.getInputStream(copy.getEntry("OEBPS/wrap0000.html"))
+                    .readAllBytes(), StandardCharsets.UTF_8));
+
+            Enumeration<? extends ZipEntry> entries = src.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry srcEntry = entries.nextElement();
+                if (srcEntry.getName().equals("OEBPS/wrap0000.html")) {
+                    continue;
+                }
+                ZipEntry copyEntry = copy.getEntry(srcEntry.getName());
+                assertNotNull(copyEntry);
+                assertEquals(srcEntry.getCrc(), copyEntry.getCrc());
+                assertEquals(srcEntry.getCompressedSize(), copyEntry.getCompressedSize());
+                assertArrayEquals(src.getInputStream(srcEntry).readAllBytes(), copy.getInputStream(copyEntry).readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    void testNewEntry() throws Exception {
+        Path dst = tempDir.resolve("stream.epub");
+        byte[] bytes = "<p>書</p>".repeat(300_000).getBytes(StandardCharsets.UTF_8);
+        try (EPUBWriter writer = new EPUBWriter(dst)) {
+            try (EPUBWriter.EntryOutputStream os = writer.newEntry("OEBPS/large.html")) {
+                os.write(bytes);
+            }
+            try (EPUBWriter.EntryOutputStream os = writer.newEntry("OEBPS/discarded.html")) {
+                os.write(bytes, 0, 100);
+                os.discard();
+            }
+        }
+
+        try (ZipFile zip = new ZipFile(dst.toFile())) {
+            assertEquals(2, zip.size());
+            assertNull(zip.getEntry("OEBPS/discarded.html"));
+            ZipEntry entry = zip.getEntry("OEBPS/large.html");
+            assertEquals(bytes.length, entry.getSize());
+            assertArrayEquals(bytes, zip.getInputStream(entry).readAllBytes());
+        }
+    }
+}